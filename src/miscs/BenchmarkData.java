@@ -0,0 +1,81 @@
+package miscs;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import model.TaxBean;
+import model.TaxCollection;
+
+
+/**
+ * Synthetic Tax records for the benchmarks, shaped like the rows
+ * of the Tax table: a handful of 'type' values repeated across
+ * many regions, with PST/GST percentages.
+ */
+class BenchmarkData {
+  private static final String[] TYPES = { "HST", "GST", "PST+GST", "QST+GST" };
+
+  private BenchmarkData() { }
+
+  static TaxBean tax(int i) {
+    TaxBean bean = new TaxBean();
+    bean.setName("Region " + i);
+    bean.setCode(String.valueOf(new char[] { (char)('A' + (i / 26) % 26), (char)('A' + i % 26) }));
+    bean.setType(TYPES[i % TYPES.length]);
+    bean.setPst((i % 200) / 20.0);
+    bean.setGst(5.0);
+    return bean;
+  }
+
+  static TaxCollection taxes(int count) {
+    List<TaxBean> list = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      list.add(tax(i));
+    }
+    TaxCollection collection = new TaxCollection();
+    collection.setTaxes(list);
+    return collection;
+  }
+
+  /**
+   * Runs the task 'iterations' times and returns the average
+   * time per iteration in microseconds. The task is run as many
+   * times beforehand to warm up the JIT.
+   */
+  static double time(int iterations, Task task) throws Exception {
+    for (int i = 0; i < iterations; i++) {
+      task.run();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      task.run();
+    }
+    return (System.nanoTime() - start) / 1000.0 / iterations;
+  }
+
+  /**
+   * Runs the task 'iterations' times and returns the average
+   * number of bytes allocated per iteration by this thread, or
+   * -1 if the JVM cannot measure it.
+   */
+  static double allocated(int iterations, Task task) throws Exception {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+    long id = Thread.currentThread().getId();
+    task.run();
+
+    long start = threads.getThreadAllocatedBytes(id);
+    for (int i = 0; i < iterations; i++) {
+      task.run();
+    }
+    return (double)(threads.getThreadAllocatedBytes(id) - start) / iterations;
+  }
+
+  interface Task {
+    void run() throws Exception;
+  }
+}
@@ -0,0 +1,481 @@
+package miscs;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import model.TaxBean;
+import model.TaxJsonReader;
+import model.TaxXmlReader;
+import services.TaxDatabase;
+
+
+/**
+ * A bulk import tool for refreshing the Tax and Sis tables. Streams
+ * the records of a CSV, JSON or XML file into a SQLite or Derby
+ * database with JDBC batches, so millions of rows load in seconds.
+ *
+ * Usage from command-line:
+ *
+ *    java BulkLoader [options] <database> <table> <file>
+ *
+ * where <database> is 'sqlite' (~/4413/pkg/sqlite/Models_R_US.db),
+ * 'derby' (jdbc:derby://localhost:64413/EECS) or any JDBC URL. The
+ * format is taken from the file's extension:
+ *
+ *  - .csv   The first line names the table's columns, and each
+ *           following line is a record. Fields may be quoted with
+ *           '"', with '""' for a quote inside, but may not span lines.
+ *  - .json  A TaxCollection, as written by ToJSONExample.
+ *  - .xml   A TaxCollection, as written by ToXMLCollectionExample.
+ *
+ * JSON and XML records are loaded into the columns of the Tax table
+ * (province, code, type, gst, pst).
+ *
+ * Options:
+ *
+ *    -batch <n>     Rows per executeBatch() (default 1000).
+ *    -commit <n>    Rows per transaction (default 50000).
+ *    -threads <n>   Parse CSV lines on n threads while loading;
+ *                   otherwise the file is parsed on a single thread
+ *                   alongside the inserts (default 0).
+ *    -truncate      Delete the table's rows first.
+ *    -keep-indexes  Do not drop the table's indexes during the load.
+ *                   By default, on SQLite, they are dropped first and
+ *                   built again once all rows are in, which is much
+ *                   faster than updating them row by row. Either way,
+ *                   the Tax table also gets the (pst, code) index
+ *                   TaxService pages 'pst_gt' results from.
+ *
+ * Example:
+ *
+ *    $ java BulkLoader -truncate sqlite Tax rates.csv
+ *    Connected to database: jdbc:sqlite:/cs/home/vwchu/4413/pkg/sqlite/Models_R_US.db
+ *    Dropped 1 index(es) on Tax
+ *    Loaded 1000000 rows in 2.33 s (429065 rows/sec)
+ *    Rebuilt 1 index(es) on Tax in 1.53 s
+ *    Disconnected from database.
+ *
+ */
+public class BulkLoader {
+  private static PrintStream log = System.out;
+
+  private static final String[] TAX_COLUMNS = { "province", "code", "type", "gst", "pst" };
+  private static final List<Object[]> END   = Collections.emptyList();
+
+  private int batchSize   = 1000;
+  private int commitSize  = 50000;
+  private int threads     = 0;
+  private boolean truncate;
+  private boolean keepIndexes;
+  private volatile boolean cancelled; // The inserts failed: producers stop
+
+  public static void main(String[] args) {
+    BulkLoader loader = new BulkLoader();
+    int i = 0;
+
+    while (i < args.length && args[i].startsWith("-")) {
+      String option = args[i++];
+      if (option.equals("-batch")) {
+        loader.batchSize = Integer.parseInt(args[i++]);
+      } else if (option.equals("-commit")) {
+        loader.commitSize = Integer.parseInt(args[i++]);
+      } else if (option.equals("-threads")) {
+        loader.threads = Integer.parseInt(args[i++]);
+      } else if (option.equals("-truncate")) {
+        loader.truncate = true;
+      } else if (option.equals("-keep-indexes")) {
+        loader.keepIndexes = true;
+      } else {
+        log.println("Unrecognized option: " + option);
+        return;
+      }
+    }
+    if (args.length - i != 3) {
+      log.println("Usage: java BulkLoader [options] <database> <table> <file>");
+      return;
+    }
+
+    String url   = args[i];
+    String table = args[i + 1];
+    String file  = args[i + 2];
+
+    if (url.equals("sqlite")) {
+      url = "jdbc:sqlite:" + System.getProperty("user.home") + "/4413/pkg/sqlite/Models_R_US.db";
+    } else if (url.equals("derby")) {
+      url = "jdbc:derby://localhost:64413/EECS";
+    }
+
+    try (Connection connection = DriverManager.getConnection(url)) {
+      log.printf("Connected to database: %s\n", connection.getMetaData().getURL());
+      loader.load(connection, table, file);
+    } catch (Exception e) {
+      log.println(e);
+      for (Throwable suppressed : e.getSuppressed()) {
+        log.println("  also: " + suppressed);
+      }
+    } finally {
+      log.println("Disconnected from database.");
+    }
+  }
+
+  public void load(Connection connection, String table, String file) throws Exception {
+    if (!table.matches("^[A-Za-z_]\\w*(\\.[A-Za-z_]\\w*)?$")) {
+      throw new IllegalArgumentException("Invalid table name: " + table);
+    }
+
+    boolean sqlite = connection.getMetaData().getURL().startsWith("jdbc:sqlite:");
+    List<String> indexes = new ArrayList<>();
+
+    try (Statement statement = connection.createStatement()) {
+      if (sqlite) {
+        // The load can be redone from the file if it is interrupted
+        statement.execute("PRAGMA synchronous = OFF");
+      }
+      if (truncate) {
+        statement.executeUpdate("DELETE FROM " + table);
+      }
+      if (sqlite && !keepIndexes) {
+        indexes = dropIndexes(connection, table);
+      }
+    }
+
+    // The indexes are built again even if the load fails, so a bad
+    // file does not leave the table without them. If that fails too,
+    // it is suppressed by the load's failure, which is the cause
+    Throwable failure = null;
+    try {
+      long start = System.nanoTime();
+      long rows;
+      try (InputStream in = new FileInputStream(file)) {
+        if (file.endsWith(".csv")) {
+          rows = loadCSV(connection, table, in);
+        } else if (file.endsWith(".json")) {
+          rows = loadTaxes(connection, table, queue -> readJSON(in, queue));
+        } else if (file.endsWith(".xml")) {
+          rows = loadTaxes(connection, table, queue -> readXML(in, queue));
+        } else {
+          throw new IllegalArgumentException("Unrecognized file format: " + file);
+        }
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      log.printf("Loaded %d rows in %.2f s (%.0f rows/sec)\n", rows, seconds, rows / seconds);
+    } catch (Throwable e) {
+      failure = e;
+      throw e;
+    } finally {
+      try {
+        if (sqlite && !keepIndexes) {
+          rebuildIndexes(connection, table, indexes);
+        } else if (sqlite && table.equalsIgnoreCase("Tax")) {
+          try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate(TaxDatabase.PST_INDEX);
+          }
+        }
+      } catch (SQLException | RuntimeException e) {
+        if (failure == null) {
+          throw e;
+        }
+        failure.addSuppressed(e);
+      }
+    }
+  }
+
+  private void rebuildIndexes(Connection connection, String table, List<String> indexes) throws SQLException {
+    long start = System.nanoTime();
+    try (Statement statement = connection.createStatement()) {
+      for (String index : indexes) {
+        statement.executeUpdate(index);
+      }
+      if (table.equalsIgnoreCase("Tax")) {
+        statement.executeUpdate(TaxDatabase.PST_INDEX);
+      }
+    }
+    log.printf("Rebuilt %d index(es) on %s in %.2f s\n", indexes.size(), table, (System.nanoTime() - start) / 1e9);
+  }
+
+  /**
+   * Drops the table's explicitly created indexes, and returns the
+   * statements to create them again. Indexes SQLite creates for
+   * PRIMARY KEY and UNIQUE constraints cannot be dropped, and are kept.
+   */
+  private List<String> dropIndexes(Connection connection, String table) throws SQLException {
+    List<String> names   = new ArrayList<>();
+    List<String> indexes = new ArrayList<>();
+    String query = "SELECT name, sql FROM sqlite_master "
+                 + "WHERE type = 'index' AND sql IS NOT NULL AND tbl_name = ? COLLATE NOCASE";
+
+    try (PreparedStatement statement = connection.prepareStatement(query)) {
+      statement.setString(1, table);
+      try (ResultSet rs = statement.executeQuery()) {
+        while (rs.next()) {
+          names.add(rs.getString("name"));
+          indexes.add(rs.getString("sql"));
+        }
+      }
+    }
+    try (Statement statement = connection.createStatement()) {
+      for (String name : names) {
+        statement.executeUpdate("DROP INDEX \"" + name + "\"");
+      }
+    }
+    log.printf("Dropped %d index(es) on %s\n", names.size(), table);
+    return indexes;
+  }
+
+  private long loadCSV(Connection connection, String table, InputStream in) throws Exception {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+    String header = reader.readLine();
+    if (header == null) {
+      return 0;
+    }
+    String[] columns = parseCSV(header);
+    for (String column : columns) {
+      if (!column.matches("^[A-Za-z_]\\w*$")) {
+        throw new IllegalArgumentException("Invalid column name: " + column);
+      }
+    }
+
+    return insert(connection, table, columns, queue -> {
+      if (threads <= 0) {
+        List<Object[]> rows = new ArrayList<>(batchSize);
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.isEmpty()) continue;
+          rows.add(parseCSV(line));
+          if (rows.size() == batchSize) {
+            put(queue, rows);
+            rows = new ArrayList<>(batchSize);
+          }
+        }
+        put(queue, rows);
+        return;
+      }
+
+      // Hand chunks of lines to the parse threads
+      ExecutorService parsers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "bulk-loader-parser-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      boolean parsed = false;
+      try {
+        List<String> lines = new ArrayList<>(batchSize);
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.isEmpty()) continue;
+          lines.add(line);
+          if (lines.size() == batchSize) {
+            parse(parsers, lines, queue);
+            lines = new ArrayList<>(batchSize);
+          }
+        }
+        parse(parsers, lines, queue);
+        parsed = true;
+      } finally {
+        if (parsed) {
+          parsers.shutdown();
+          parsers.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } else {
+          parsers.shutdownNow();
+        }
+      }
+    });
+  }
+
+  private void parse(ExecutorService parsers, List<String> lines, BlockingQueue<List<Object[]>> queue) {
+    parsers.execute(() -> {
+      List<Object[]> rows = new ArrayList<>(lines.size());
+      for (String line : lines) {
+        rows.add(parseCSV(line));
+      }
+      try {
+        put(queue, rows);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+  }
+
+  /**
+   * Puts rows on the queue, waiting for room only as long as the load
+   * is not cancelled: once the inserts failed, no one takes them.
+   */
+  private void put(BlockingQueue<List<Object[]>> queue, List<Object[]> rows) throws InterruptedException {
+    while (!queue.offer(rows, 100, TimeUnit.MILLISECONDS)) {
+      if (cancelled) {
+        throw new InterruptedException("Load cancelled");
+      }
+    }
+  }
+
+  static String[] parseCSV(String line) {
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted      = false;
+
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields.toArray(new String[fields.size()]);
+  }
+
+  private long loadTaxes(Connection connection, String table, Producer producer) throws Exception {
+    return insert(connection, table, TAX_COLUMNS, producer);
+  }
+
+  private void readJSON(InputStream in, BlockingQueue<List<Object[]>> queue) throws Exception {
+    TaxJsonReader reader = new TaxJsonReader(in);
+    List<Object[]> rows  = new ArrayList<>(batchSize);
+    TaxBean bean;
+
+    while ((bean = reader.read()) != null) {
+      rows.add(row(bean));
+      if (rows.size() == batchSize) {
+        put(queue, rows);
+        rows = new ArrayList<>(batchSize);
+      }
+    }
+    put(queue, rows);
+  }
+
+  private void readXML(InputStream in, BlockingQueue<List<Object[]>> queue) throws Exception {
+    TaxXmlReader reader = new TaxXmlReader(in);
+    List<Object[]> rows = new ArrayList<>(batchSize);
+    TaxBean bean;
+
+    while ((bean = reader.read()) != null) {
+      rows.add(row(bean));
+      if (rows.size() == batchSize) {
+        put(queue, rows);
+        rows = new ArrayList<>(batchSize);
+      }
+    }
+    reader.close();
+    put(queue, rows);
+  }
+
+  private static Object[] row(TaxBean bean) {
+    return new Object[] { bean.getName(), bean.getCode(), bean.getType(), bean.getGst(), bean.getPst() };
+  }
+
+  /**
+   * Inserts the rows the producer puts on the queue, in batches.
+   * The producer runs on its own thread, so parsing overlaps with
+   * the inserts.
+   */
+  private long insert(Connection connection, String table, String[] columns, Producer producer) throws Exception {
+    String query = "INSERT INTO " + table + " (" + String.join(", ", columns) + ") "
+                 + "VALUES (" + String.join(", ", Collections.nCopies(columns.length, "?")) + ")";
+
+    BlockingQueue<List<Object[]>> queue = new ArrayBlockingQueue<>(Math.max(4, threads * 2));
+    AtomicReference<Exception> error    = new AtomicReference<>();
+    cancelled = false;
+
+    Thread reader = new Thread(() -> {
+      try {
+        producer.produce(queue);
+      } catch (Exception e) {
+        error.set(e);
+      } finally {
+        try {
+          put(queue, END);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, "bulk-loader-reader");
+    reader.setDaemon(true);
+    reader.start();
+
+    long rows    = 0;
+    int pending  = 0;
+    boolean auto = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+
+    try (PreparedStatement statement = connection.prepareStatement(query)) {
+      List<Object[]> chunk;
+      while ((chunk = queue.take()) != END) {
+        for (Object[] row : chunk) {
+          if (row.length != columns.length) {
+            throw new IllegalArgumentException("Expected " + columns.length + " fields, got " + row.length);
+          }
+          for (int i = 0; i < row.length; i++) {
+            statement.setObject(i + 1, row[i]);
+          }
+          statement.addBatch();
+          rows++;
+
+          if (++pending % batchSize == 0) {
+            statement.executeBatch();
+          }
+          if (pending >= commitSize) {
+            statement.executeBatch();
+            connection.commit();
+            pending = 0;
+          }
+        }
+      }
+      if (error.get() != null) {
+        throw error.get();
+      }
+      statement.executeBatch();
+      connection.commit();
+    } catch (Exception e) {
+      cancelled = true;
+      connection.rollback();
+      reader.interrupt();
+      throw e;
+    } finally {
+      connection.setAutoCommit(auto);
+    }
+
+    reader.join();
+    return rows;
+  }
+
+  private interface Producer {
+    void produce(BlockingQueue<List<Object[]>> queue) throws Exception;
+  }
+}
@@ -0,0 +1,100 @@
+package miscs;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import services.CrossRates;
+
+
+/**
+ * Compares converting amounts between random pairs of 170 currencies
+ * by looking both rates up in a Map and dividing, as the service
+ * would with the rates of the API response, with looking the pair
+ * up in a CrossRates matrix. The matrix is timed both with the
+ * currency codes looked up per conversion and with the ids
+ * looked up once, as for the amounts of a batch request. Checks
+ * first that all give the same result.
+ *
+ * Usage from command-line:
+ *
+ *    java CrossRateBenchmark [conversions] [iterations]
+ *
+ * Example:
+ *
+ *    $ java CrossRateBenchmark 100000 200
+ *    100000 conversions, 170 currencies, 200 iterations
+ *    rates                time (us) ns/conversion
+ *    map                    1280.90         12.81
+ *    matrix, codes          1106.52         11.07
+ *    matrix, ids              99.87          1.00
+ *
+ */
+public class CrossRateBenchmark {
+  private static PrintStream log = System.out;
+
+  private static double sink;
+
+  public static void main(String[] args) throws Exception {
+    int conversions = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+    int iterations  = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+    int currencies  = 170;
+
+    Map<String, Double> rates = new HashMap<>();
+    String[] codes = new String[currencies];
+    for (int i = 0; i < currencies; i++) {
+      codes[i] = String.valueOf(new char[] { (char)('A' + i / 26 % 26), (char)('A' + i % 26), 'X' });
+      rates.put(codes[i], 0.5 + i * 1.37);
+    }
+    CrossRates cross = new CrossRates(codes[0], rates);
+
+    String[] from    = new String[conversions];
+    String[] to      = new String[conversions];
+    int[] fromId     = new int[conversions];
+    int[] toId       = new int[conversions];
+    double[] amounts = new double[conversions];
+    for (int i = 0; i < conversions; i++) {
+      from[i]    = new String(codes[(int)(i * 7919L % currencies)].toCharArray()); // as parsed from a request
+      to[i]      = new String(codes[(int)((i * 104729L + 13) % currencies)].toCharArray());
+      fromId[i]  = cross.id(from[i]);
+      toId[i]    = cross.id(to[i]);
+      amounts[i] = i % 1000 + 0.25;
+    }
+
+    for (int i = 0; i < conversions; i++) {
+      double expected = amounts[i] * (rates.get(to[i]) / rates.get(from[i]));
+      if (Math.abs(cross.convert(amounts[i], cross.id(from[i]), cross.id(to[i])) - expected) > 1e-9 * expected) {
+        throw new IllegalStateException("CrossRates does not convert like the rates: " + from[i] + " " + to[i]);
+      }
+    }
+
+    log.printf("%d conversions, %d currencies, %d iterations\n", conversions, currencies, iterations);
+    log.printf("%-18s %11s %13s\n", "rates", "time (us)", "ns/conversion");
+
+    report("map", conversions, BenchmarkData.time(iterations, () -> {
+      double sum = 0;
+      for (int i = 0; i < conversions; i++) {
+        sum += amounts[i] * (rates.get(to[i]) / rates.get(from[i]));
+      }
+      sink += sum;
+    }));
+    report("matrix, codes", conversions, BenchmarkData.time(iterations, () -> {
+      double sum = 0;
+      for (int i = 0; i < conversions; i++) {
+        sum += cross.convert(amounts[i], cross.id(from[i]), cross.id(to[i]));
+      }
+      sink += sum;
+    }));
+    report("matrix, ids", conversions, BenchmarkData.time(iterations, () -> {
+      double sum = 0;
+      for (int i = 0; i < conversions; i++) {
+        sum += cross.convert(amounts[i], fromId[i], toId[i]);
+      }
+      sink += sum;
+    }));
+  }
+
+  private static void report(String name, int conversions, double micros) {
+    log.printf("%-18s %11.2f %13.2f\n", name, micros, micros * 1000 / conversions);
+  }
+}
@@ -0,0 +1,114 @@
+package miscs;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Scanner;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import services.ExchangeRateReader;
+
+
+/**
+ * Compares ways of reading the CAD rate from a fixer.io response
+ * with 170 currencies: the lines concatenated into a String and
+ * parsed into a JsonObject (as ExchangeRateService used to), the
+ * body parsed into a JsonObject directly, and ExchangeRateReader
+ * streaming the tokens, keeping all rates or only CAD. Checks
+ * first that all read the same rate.
+ *
+ * Usage from command-line:
+ *
+ *    java ExchangeRateBenchmark [iterations]
+ *
+ * Example:
+ *
+ *    $ java ExchangeRateBenchmark 20000
+ *    20000 iterations, 4252 byte response, 170 currencies
+ *    reader             time (us)  allocated (bytes)
+ *    string + tree         339.52            3388776
+ *    tree                   33.22              53984
+ *    stream, all            47.68              84272
+ *    stream, CAD            22.05              28512
+ *
+ * Reading all rates costs more than the tree, which leaves the
+ * numbers unparsed until they are read; the gain comes from
+ * reading only the currencies that are used.
+ *
+ */
+public class ExchangeRateBenchmark {
+  private static PrintStream log = System.out;
+
+  private static double sink;
+
+  public static void main(String[] args) throws Exception {
+    int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+    int currencies = 170;
+
+    byte[] body = response(currencies);
+    ExchangeRateReader all = new ExchangeRateReader();
+    ExchangeRateReader cad = new ExchangeRateReader(Collections.singleton("CAD"));
+
+    double expected = 1.4687;
+    if (concatenated(body) != expected || tree(body) != expected
+     || all.read(reader(body)).get("CAD") != expected || cad.read(reader(body)).get("CAD") != expected
+     || all.read(reader(body)).getRates().size() != currencies || cad.read(reader(body)).getRates().size() != 1) {
+      throw new IllegalStateException("The readers do not agree on the rates");
+    }
+
+    log.printf("%d iterations, %d byte response, %d currencies\n", iterations, body.length, currencies);
+    log.printf("%-16s %11s %18s\n", "reader", "time (us)", "allocated (bytes)");
+    report("string + tree", iterations, () -> sink += concatenated(body));
+    report("tree",          iterations, () -> sink += tree(body));
+    report("stream, all",   iterations, () -> sink += all.read(reader(body)).get("CAD"));
+    report("stream, CAD",   iterations, () -> sink += cad.read(reader(body)).get("CAD"));
+  }
+
+  private static void report(String name, int iterations, BenchmarkData.Task task) throws Exception {
+    log.printf("%-16s %11.2f %18.0f\n", name,
+      BenchmarkData.time(iterations, task), BenchmarkData.allocated(iterations, task));
+  }
+
+  /**
+   * A response like fixer.io's, pretty-printed over several lines,
+   * with CAD among the other currencies.
+   */
+  private static byte[] response(int currencies) {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n  \"success\": true,\n  \"timestamp\": 1760882400,\n");
+    json.append("  \"base\": \"EUR\",\n  \"date\": \"2026-10-19\",\n  \"rates\": {\n");
+    for (int i = 0; i < currencies; i++) {
+      String currency = (i == currencies / 2) ? "CAD"
+                      : String.valueOf(new char[] { (char)('A' + i / 26 % 26), (char)('A' + i % 26), 'X' });
+      double rate = (i == currencies / 2) ? 1.4687 : 0.5 + i * 1.37;
+      json.append(String.format("    \"%s\": %s%s\n", currency, rate, (i < currencies - 1) ? "," : ""));
+    }
+    json.append("  }\n}\n");
+    return json.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static Reader reader(byte[] body) {
+    return new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8);
+  }
+
+  private static double concatenated(byte[] body) {
+    String payload = "";
+    try (Scanner http = new Scanner(new ByteArrayInputStream(body))) {
+      while (http.hasNextLine()) {
+        payload += http.nextLine();
+      }
+    }
+    JsonObject data = new JsonParser().parse(payload).getAsJsonObject();
+    return data.get("rates").getAsJsonObject().get("CAD").getAsDouble();
+  }
+
+  private static double tree(byte[] body) {
+    JsonObject data = new JsonParser().parse(reader(body)).getAsJsonObject();
+    return data.get("rates").getAsJsonObject().get("CAD").getAsDouble();
+  }
+}
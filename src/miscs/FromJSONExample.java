@@ -1,19 +1,24 @@
 package miscs;
 
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
-import java.util.Scanner;
 
-import com.google.gson.Gson;
-
-import model.TaxCollection;
+import model.TaxJsonReader;
 
 
 /**
- * An example for de-serializing the given JSON into a Java Object.
+ * An example for de-serializing the given JSON into Java Objects.
+ * The records are streamed with TaxJsonReader one at a time, so
+ * large exports are read in constant memory.
  *
  * Usage from command-line:
  *
- *    java FromJSONExample
+ *    java FromJSONExample [file ...]
+ *
+ * Reads the given files, or standard input if there are none.
  *
  * Example:
  *
@@ -23,7 +28,6 @@ import model.TaxCollection;
  *    > {"name":"Nova Scotia","code":"NS","type":"HST","pst":10.0,"gst":5.0},
  *    > {"name":"Prince Edward Island","code":"PE","type":"HST","pst":10.0,"gst":5.0},
  *    > {"name":"Québec","code":"QC","type":"QST+GST","pst":9.975000000000001,"gst":5.0}]}
- *    >
  *    Taxes in New-Brunswick (NB):
  *    - Type = HST
  *    - GST  = 5.00%
@@ -50,21 +54,34 @@ import model.TaxCollection;
 public class FromJSONExample {
   private static PrintStream log = System.out;
   public static void main(String[] args) {
-    try (Scanner in = new Scanner(System.in)) {
-      String line;
-      String input = "";
-
-      while (in.hasNextLine()) {
-        line = in.nextLine();
-        if (line.isEmpty()) break;
-        input += line;
+    try {
+      if (args.length == 0) {
+        print(System.in);
+      }
+      for (String file : args) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+          print(in);
+        }
       }
-
-      Gson gson = new Gson();
-      TaxCollection collection = (TaxCollection)gson.fromJson(input, TaxCollection.class);
-      log.println(collection);
     } catch (Exception e) {
       log.println(e);
     }
   }
+
+  /**
+   * Prints each record as soon as it has been read, so the
+   * document is never held in memory as a whole.
+   */
+  private static void print(InputStream in) throws IOException {
+    TaxJsonReader reader = new TaxJsonReader(in);
+    reader.forEach(log::print);
+
+    if (reader.getUnknown() != null && !reader.getUnknown().isEmpty()) {
+      log.println("Unknown codes: " + String.join(", ", reader.getUnknown()));
+    }
+    if (reader.getNext() != null) {
+      log.println("Next page: " + reader.getNext());
+    }
+    log.println();
+  }
 }
@@ -1,19 +1,15 @@
 package miscs;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
 import java.io.PrintStream;
-import java.util.Scanner;
-
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Unmarshaller;
 
 import model.TaxBean;
-import model.TaxCollection;
+import model.TaxXmlReader;
 
 
 /**
  * An example for de-serializing the given XML into a Java Object.
+ * The document is streamed with TaxXmlReader (StAX) one <tax>
+ * element at a time, so large documents are read in constant memory.
  *
  * Usage from command-line:
  *
@@ -29,7 +25,6 @@ import model.TaxCollection;
  *    >  <pst>8.0</pst>
  *    >  <type>HST</type>
  *    > </tax>
- *    >
  *    Taxes in Ontario (ON):
  *    - Type = HST
  *    - GST  = 5.00%
@@ -52,7 +47,6 @@ import model.TaxCollection;
  *    >     <type>HST</type>
  *    >   </tax>
  *    > </taxes>
- *    >
  *    Taxes in New-Brunswick (NB):
  *    - Type = HST
  *    - GST  = 5.00%
@@ -67,28 +61,21 @@ public class FromXMLExample {
   private static PrintStream log = System.out;
   public static void main(String[] args) {
     String type = args[0];
-    String input = "";
-    String line;
-
-    try (Scanner in = new Scanner(System.in)) {
-      while (in.hasNextLine()) {
-        line = in.nextLine();
-        if (line.isEmpty()) break;
-        input += line;
-      }
-    }
 
-    try (InputStream stream = new ByteArrayInputStream(input.getBytes())) {
+    try (TaxXmlReader reader = new TaxXmlReader(System.in)) {
       if (type.equals("taxes")) {
-        JAXBContext context = JAXBContext.newInstance(TaxCollection.class);
-        Unmarshaller u = context.createUnmarshaller();
-        TaxCollection collection = (TaxCollection)u.unmarshal(stream);
+        // Each record is printed as soon as it has been read
+        reader.forEach(log::print);
 
-        log.println(collection);
+        if (reader.getUnknown() != null && !reader.getUnknown().isEmpty()) {
+          log.println("Unknown codes: " + String.join(", ", reader.getUnknown()));
+        }
+        if (reader.getNext() != null) {
+          log.println("Next page: " + reader.getNext());
+        }
+        log.println();
       } else if (type.equals("tax")) {
-        JAXBContext context = JAXBContext.newInstance(TaxBean.class);
-        Unmarshaller u = context.createUnmarshaller();
-        TaxBean bean = (TaxBean)u.unmarshal(stream);
+        TaxBean bean = reader.read();
 
         log.println(bean);
       } else {
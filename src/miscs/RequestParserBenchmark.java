@@ -0,0 +1,98 @@
+package miscs;
+
+import java.io.PrintStream;
+
+import services.SquareRootService;
+import services.TaxRequest;
+
+
+/**
+ * Compares the throughput of the regular expression request
+ * validation the services used to do, against the hand-written
+ * tokenizers that now parse the request bytes in place
+ * (TaxRequest for TaxService, SquareRootService.isInteger/parseInt).
+ *
+ * Usage from command-line:
+ *
+ *    java RequestParserBenchmark [iterations]
+ *
+ * Example:
+ *
+ *    $ java RequestParserBenchmark 1000000
+ *    parser               requests/sec
+ *    tax (regex)                453316
+ *    tax (tokenizer)          13074030
+ *    sqrt (regex)              2498433
+ *    sqrt (tokenizer)         54534322
+ *
+ */
+public class RequestParserBenchmark {
+  private static PrintStream log = System.out;
+
+  private static final String[] TAX_REQUESTS = {
+    "code_eq ON json", "code_in QC,ON,BC xml", "pst_gt 9.0 json", "pst_gt 9.x bin", "code_eq Ontario xml"
+  };
+  private static final String[] SQRT_REQUESTS = { "169", "-15", "+2147483647", "ABCD" };
+
+  private static int sink;
+
+  public static void main(String[] args) throws Exception {
+    int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+
+    byte[][] taxBytes  = bytes(TAX_REQUESTS);
+    byte[][] sqrtBytes = bytes(SQRT_REQUESTS);
+
+    log.printf("%-18s %14s\n", "parser", "requests/sec");
+
+    report("tax (regex)", iterations, () -> {
+      for (String request : TAX_REQUESTS) {
+        String trimmed = request.trim();
+        if (trimmed.matches("^(code_eq|code_in|pst_gt)\\s+(\\S+)\\s+(json|xml|bin)$")) {
+          String[] token = trimmed.split("\\s+");
+          if (token[1].matches("^[A-Z]{2}(,[A-Z]{2})*$") || token[1].matches("^[0-9]+(\\.[0-9]+)?$")) {
+            sink++;
+          }
+        }
+      }
+    });
+
+    TaxRequest request = new TaxRequest();
+    report("tax (tokenizer)", iterations, () -> {
+      for (byte[] bytes : taxBytes) {
+        if (request.parse(bytes, 0, bytes.length) && request.validate() == null) {
+          sink++;
+        }
+      }
+    });
+
+    report("sqrt (regex)", iterations, () -> {
+      for (String value : SQRT_REQUESTS) {
+        if (value.matches("^[+-]?\\d+$")) {
+          sink += Integer.parseInt(value);
+        }
+      }
+    });
+
+    report("sqrt (tokenizer)", iterations, () -> {
+      for (byte[] bytes : sqrtBytes) {
+        if (SquareRootService.isInteger(bytes, 0, bytes.length)) {
+          sink += SquareRootService.parseInt(bytes, 0, bytes.length);
+        }
+      }
+    });
+  }
+
+  private static void report(String name, int iterations, BenchmarkData.Task task) throws Exception {
+    int perIteration = name.startsWith("tax") ? TAX_REQUESTS.length : SQRT_REQUESTS.length;
+    double micros    = BenchmarkData.time(iterations, task);
+    log.printf("%-18s %14.0f\n", name, perIteration * 1e6 / micros);
+  }
+
+  private static byte[][] bytes(String[] requests) {
+    byte[][] bytes = new byte[requests.length][];
+    for (int i = 0; i < requests.length; i++) {
+      bytes[i] = requests[i].getBytes();
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,117 @@
+package miscs;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import services.SquareRootBinary;
+import services.SquareRootService;
+
+
+/**
+ * Compares answering a batch of integers with SquareRootService's
+ * text protocol, one line per value, against its binary mode, one
+ * frame for the whole batch:
+ *
+ *  - text (String)  Math.sqrt(Integer.parseInt(request)), formatted
+ *                   with Double.toString, as the service first did
+ *  - text (bytes)   isInteger/parseInt on the request bytes, as it
+ *                   does now, still formatted with Double.toString
+ *  - binary         getInts, roots and putDoubles of SquareRootBinary,
+ *                   from the request bytes to the response bytes
+ *  - roots only     the loop of Math.sqrt over an int[], i.e. the
+ *                   math without the encoding
+ *
+ * Java 8 has no Vector API, so roots() is a plain loop over primitive
+ * arrays: Math.sqrt is a JIT intrinsic, one sqrtsd instruction per
+ * value. Checks first that all give the same roots.
+ *
+ * Usage from command-line:
+ *
+ *    java SquareRootBenchmark [values] [iterations]
+ *
+ * Example:
+ *
+ *    $ java SquareRootBenchmark 8192 2000
+ *    8192 values per batch, 2000 iterations
+ *    protocol           time (us)   ns/value      values/sec     bytes/value
+ *    text (String)        1939.27     236.73         4224269           181.8
+ *    text (bytes)         1530.69     186.85         5351841            55.1
+ *    binary                 64.66       7.89       126686977             0.0
+ *    roots only             29.98       3.66       273280554             0.0
+ *
+ */
+public class SquareRootBenchmark {
+  private static PrintStream log = System.out;
+
+  private static long sink;
+
+  public static void main(String[] args) throws Exception {
+    int count      = (args.length > 0) ? Integer.parseInt(args[0]) : SquareRootBinary.CHUNK;
+    int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+
+    int[] values   = new int[count];
+    String[] lines = new String[count];
+    byte[][] bytes = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      values[i] = (int)(i * 7919L % 1000000);
+      lines[i]  = String.valueOf(values[i]);
+      bytes[i]  = lines[i].getBytes(StandardCharsets.US_ASCII);
+    }
+    byte[] frame   = new byte[count * 4];
+    byte[] result  = new byte[count * 8];
+    int[] ints     = new int[count];
+    double[] roots = new double[count];
+    SquareRootBinary.putInts(values, count, frame);
+
+    SquareRootBinary.getInts(frame, ints, count);
+    SquareRootBinary.roots(ints, roots, count);
+    SquareRootBinary.putDoubles(roots, count, result);
+    double[] decoded = new double[count];
+    SquareRootBinary.getDoubles(result, decoded, count);
+    for (int i = 0; i < count; i++) {
+      if (!String.valueOf(decoded[i]).equals(String.valueOf(Math.sqrt(Integer.parseInt(lines[i]))))) {
+        throw new IllegalStateException("Binary root differs for " + lines[i]);
+      }
+    }
+
+    log.printf("%d values per batch, %d iterations\n", count, iterations);
+    log.printf("%-16s %11s %10s %15s %15s\n", "protocol", "time (us)", "ns/value", "values/sec", "bytes/value");
+
+    BenchmarkData.Task text = () -> {
+      for (int i = 0; i < count; i++) {
+        String response = "" + Math.sqrt(Integer.parseInt(lines[i]));
+        sink += response.length();
+      }
+    };
+    report("text (String)", count, BenchmarkData.time(iterations, text), BenchmarkData.allocated(iterations, text));
+
+    BenchmarkData.Task tokens = () -> {
+      for (int i = 0; i < count; i++) {
+        byte[] line = bytes[i];
+        if (SquareRootService.isInteger(line, 0, line.length)) {
+          sink += Double.toString(Math.sqrt(SquareRootService.parseInt(line, 0, line.length))).length();
+        }
+      }
+    };
+    report("text (bytes)", count, BenchmarkData.time(iterations, tokens), BenchmarkData.allocated(iterations, tokens));
+
+    BenchmarkData.Task binary = () -> {
+      SquareRootBinary.getInts(frame, ints, count);
+      SquareRootBinary.roots(ints, roots, count);
+      SquareRootBinary.putDoubles(roots, count, result);
+      sink += result[count * 8 - 1];
+    };
+    report("binary", count, BenchmarkData.time(iterations, binary), BenchmarkData.allocated(iterations, binary));
+
+    BenchmarkData.Task math = () -> {
+      SquareRootBinary.roots(ints, roots, count);
+      sink += (long)roots[count - 1];
+    };
+    report("roots only", count, BenchmarkData.time(iterations, math), BenchmarkData.allocated(iterations, math));
+  }
+
+  private static void report(String name, int count, double micros, double allocated) {
+    log.printf("%-16s %11.2f %10.2f %15.0f %15.1f\n",
+      name, micros, micros * 1000 / count, count / micros * 1e6, allocated / count);
+  }
+}
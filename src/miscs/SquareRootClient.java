@@ -0,0 +1,187 @@
+package miscs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import services.LineReader;
+import services.SquareRootBinary;
+
+
+/**
+ * Streams many values to SquareRootService over one connection, in
+ * its session mode, and reports the throughput.
+ *
+ * Usage:
+ *
+ *    java miscs.SquareRootClient [-binary] <host> <port> [values...]
+ *
+ * Each value is an integer or a range 'first..last'. Without values,
+ * they are read from standard input, one per line. The values are
+ * sent from a second thread while the results are read, so neither
+ * side waits for the other. The results are counted, not printed;
+ * only the last one is shown.
+ *
+ * With -binary, the values are sent in the binary mode instead, as
+ * frames of up to FRAME ints (see SquareRootBinary), and the roots
+ * come back as doubles.
+ *
+ * Example:
+ *
+ *    $ java services.SquareRootService
+ *    Server listening on vm/127.0.0.1:35433
+ *
+ *    $ java miscs.SquareRootClient vm 35433 1..1000000
+ *    Connected to server vm/127.0.0.1:35433
+ *    Received 1000000 results in 488 ms (2048752 values/sec)
+ *    Last result: 1000.0
+ *
+ */
+public class SquareRootClient {
+  private static PrintStream log = System.out;
+
+  private static final int FRAME = 1 << 16;
+
+  private static List<String> values(String[] args, int from) throws Exception {
+    List<String> values = new ArrayList<>();
+    if (args.length > from) {
+      values.addAll(Arrays.asList(args).subList(from, args.length));
+    } else {
+      BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+      String line;
+      while ((line = in.readLine()) != null) {
+        values.add(line);
+      }
+    }
+    return values;
+  }
+
+  private static void sendText(Socket client, List<String> values) throws Exception {
+    // Not closed: that would close the socket, not only this side of it
+    PrintStream req = new PrintStream(new BufferedOutputStream(client.getOutputStream(), 1 << 16), false);
+    req.println("session");
+    for (String value : values) {
+      req.println(value);
+    }
+    req.flush();
+    client.shutdownOutput(); // Ends the session
+  }
+
+  private static void sendBinary(Socket client, List<String> values) throws Exception {
+    DataOutputStream req = new DataOutputStream(new BufferedOutputStream(client.getOutputStream(), 1 << 16));
+    req.writeBytes("binary\n");
+
+    int[] frame = new int[FRAME];
+    byte[] buf  = new byte[FRAME * 4];
+    int count   = 0;
+    for (String value : values) {
+      String[] range = value.trim().split("\\.\\.");
+      long first = Integer.parseInt(range[0]);
+      long last  = (range.length > 1) ? Integer.parseInt(range[1]) : first;
+      for (long v = first; v <= last; v++) {
+        frame[count++] = (int)v;
+        if (count == FRAME) {
+          sendFrame(req, frame, count, buf);
+          count = 0;
+        }
+      }
+    }
+    if (count > 0) {
+      sendFrame(req, frame, count, buf);
+    }
+    req.flush();
+    client.shutdownOutput();
+  }
+
+  private static void sendFrame(DataOutputStream req, int[] frame, int count, byte[] buf) throws Exception {
+    req.writeByte(SquareRootBinary.TYPE_INT);
+    req.writeInt(count);
+    SquareRootBinary.putInts(frame, count, buf);
+    req.write(buf, 0, count * 4);
+  }
+
+  /**
+   * Reads the response frames, and returns the number of roots.
+   */
+  private static long receiveBinary(Socket client, String[] last) throws Exception {
+    DataInputStream res = new DataInputStream(new BufferedInputStream(client.getInputStream(), 1 << 16));
+    byte[] buf          = new byte[SquareRootBinary.CHUNK * 8];
+    double[] roots      = new double[SquareRootBinary.CHUNK];
+    long results        = 0;
+
+    while (true) {
+      int count;
+      try {
+        count = res.readInt();
+      } catch (EOFException e) {
+        return results;
+      }
+      if (count < 0) {
+        throw new EOFException("Frame rejected by the server");
+      }
+      for (int done = 0; done < count; ) {
+        int n = Math.min(count - done, SquareRootBinary.CHUNK);
+        res.readFully(buf, 0, n * 8);
+        SquareRootBinary.getDoubles(buf, roots, n);
+        last[0] = String.valueOf(roots[n - 1]);
+        done   += n;
+      }
+      results += count;
+    }
+  }
+
+  private static long receiveText(Socket client, String[] last) throws Exception {
+    LineReader res = new LineReader(client.getInputStream(), 1 << 16);
+    long results   = 0;
+    while (res.next()) {
+      results++;
+      if (!res.buffered()) { // Only the last line of each batch is decoded
+        last[0] = res.toString();
+      }
+    }
+    return results;
+  }
+
+  public static void main(String[] args) throws Exception {
+    boolean binary = args[0].equals("-binary");
+    int at         = binary ? 1 : 0;
+
+    try (Socket client = new Socket(args[at], Integer.parseInt(args[at + 1]))) {
+      log.printf("Connected to server %s:%d\n", client.getInetAddress(), client.getPort());
+      List<String> values = values(args, at + 2);
+      long started        = System.nanoTime();
+
+      Thread sender = new Thread(() -> {
+        try {
+          if (binary) {
+            sendBinary(client, values);
+          } else {
+            sendText(client, values);
+          }
+        } catch (Exception e) {
+          log.println(e);
+        }
+      }, "sender");
+      sender.start();
+
+      String[] last = new String[1];
+      long results  = binary ? receiveBinary(client, last) : receiveText(client, last);
+      sender.join();
+
+      long elapsed = Math.max(System.nanoTime() - started, 1);
+      log.printf("Received %d results in %d ms (%.0f values/sec)\n",
+        results, elapsed / 1000000, results * 1e9 / elapsed);
+      log.println("Last result: " + last[0]);
+    }
+  }
+}
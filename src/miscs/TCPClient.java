@@ -1,9 +1,14 @@
 package miscs;
 
-import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 import java.io.PrintStream;
 
+import services.Config;
+import services.ServiceClient;
+
 
 /**
  * Example TCP Client. Given as argument the
@@ -13,15 +18,20 @@ import java.io.PrintStream;
  *
  * Usage:
  *
- *    java TCPClient <host> <port>
+ *    java TCPClient <host> <port> [count]
+ *    java TCPClient -frames <host> <port> [count]
+ *    java TCPClient -http <host> <port> <path> [count]
  *
  * The request text is read from standard input.
  *
- * Most of this code is error handling and validating
- * input arguments. We check if the host is a valid
- * hostname or IP address by attempting to resolve via
- * a DNS request. We check that the port number is an
- * integer between 0 and 65535 (16-bits).
+ * The requests go through a ServiceClient, the client library for
+ * the services, which does the connecting, the pooling and the
+ * timeouts (CLIENT_TIMEOUT, default 5000 ms). The request is sent
+ * 'count' times (default 1), all at once: each on a connection of its
+ * own, CLIENT_CONNECTIONS at a time (default 4), or with -frames to
+ * the service's FrameServer port, over CLIENT_CONNECTIONS connections;
+ * with -http, 'count' GETs of the path are pipelined on them. The
+ * first response is printed, then the latencies.
  *
  * To use with your web service, first start the server:
  *
@@ -31,7 +41,6 @@ import java.io.PrintStream;
  * Then, run this program:
  *
  *    $ java services.TCPClient 130.63.96.34 39653
- *    Connected to server /130.63.96.34:39653
  *    Enter your request, then press <Enter>: 169
  *    The response is: 13.0
  *    Client connection closed.
@@ -41,25 +50,65 @@ import java.io.PrintStream;
  *	  Connected to /130.63.96.34:59150
  *    Disconnected from /130.63.96.34:59150
  *
+ * Many requests at once, to the frames port and to the stub:
+ *
+ *    $ echo 169 | java miscs.TCPClient -frames vm 41233 100000
+ *    Enter your request, then press <Enter>: The response is: 13.0
+ *    100000 responses in 1337 ms (74781 requests/sec)
+ *    frame vm:41233 connections=4 n=100000 mean=6484us p50=5887us p90=11775us p99=21503us max=30520us timeouts=0 failures=0
+ *    Client connection closed.
+ *
+ *    $ java miscs.TCPClient -http vm 40673 /api/latest 10000
+ *    The response is: 200 {"success":true,"timestamp":1792438250,"base":"EUR","date":"2026-10-19","rates":{...}}
+ *    10000 responses in 1206 ms (8288 requests/sec)
+ *    http vm:40673 connections=4 n=10000 mean=229876us p50=237567us p90=475135us p99=540667us max=540667us timeouts=0 failures=0
+ *    Client connection closed.
+ *
  */
 public class TCPClient {
   private static PrintStream log = System.out;
   public static void main(String[] args) throws Exception {
     // Normally, I would validate my arguments first, but to keep this example succinct, I won't.
+    boolean frames = args[0].equals("-frames");
+    boolean http   = args[0].equals("-http");
+    int at         = (frames || http) ? 1 : 0;
+    String host    = args[at];
+    int port       = Integer.parseInt(args[at + 1]);
+    String path    = http ? args[at + 2] : null;
+    int countAt    = http ? at + 3 : at + 2;
+    int count      = (args.length > countAt) ? Integer.parseInt(args[countAt]) : 1;
+
     try (
-      Socket client   = new Socket(args[0], Integer.parseInt(args[1]));
-      PrintStream req = new PrintStream(client.getOutputStream(), true);
-      Scanner res     = new Scanner(client.getInputStream());
-      Scanner in      = new Scanner(System.in);
+      ServiceClient client = new ServiceClient(
+        Config.getInt("CLIENT_CONNECTIONS", 4), Config.getLong("CLIENT_TIMEOUT", 5000));
+      Scanner in           = new Scanner(System.in);
     ) {
-      log.printf("Connected to server %s:%d\n", client.getInetAddress(), client.getPort());
-      log.print("Enter your request, then press <Enter>: ");
-      String request = in.nextLine();
-      req.println(request);
+      String request = null;
+      if (!http) {
+        log.print("Enter your request, then press <Enter>: ");
+        request = in.nextLine();
+      }
+
+      long started = System.nanoTime();
+      List<CompletableFuture<?>> responses = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        if (frames) {
+          responses.add(client.frame(host, port, request));
+        } else if (http) {
+          responses.add(client.get(host, port, path));
+        } else {
+          responses.add(client.line(host, port, request));
+        }
+      }
+      CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+      long elapsed = Math.max(System.nanoTime() - started, 1);
 
-      String response = res.nextLine();
       log.print("The response is: ");
-      log.println(response);
+      log.println(responses.get(0).join());
+      if (count > 1) {
+        log.printf("%d responses in %d ms (%.0f requests/sec)\n", count, elapsed / 1000000, count * 1e9 / elapsed);
+        log.print(client.stats());
+      }
     } catch (Exception e) {
       log.println(e);
     } finally {
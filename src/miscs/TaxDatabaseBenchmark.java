@@ -0,0 +1,65 @@
+package miscs;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import services.TaxDatabase;
+
+
+/**
+ * Compares the query latency of the TaxDatabase modes: reading
+ * the SQLite file from disk, from an in-memory copy, or opened
+ * immutable with mmap. Each query opens its own connection, the
+ * same as TaxService does per request.
+ *
+ * Usage from command-line:
+ *
+ *    java TaxDatabaseBenchmark [iterations] [path]
+ *
+ * Example:
+ *
+ *    $ java TaxDatabaseBenchmark 5000
+ *    mode          code_eq (us)   pst_gt (us)
+ *    disk                244.64        201.60
+ *    memory               97.38         75.59
+ *    immutable           142.16        120.15
+ *
+ */
+public class TaxDatabaseBenchmark {
+  private static PrintStream log = System.out;
+  public static void main(String[] args) throws Exception {
+    String home    = System.getProperty("user.home");
+    int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+    String path    = (args.length > 1) ? args[1] : home + "/4413/pkg/sqlite/Models_R_US.db";
+
+    log.printf("%-10s %15s %13s\n", "mode", "code_eq (us)", "pst_gt (us)");
+
+    for (String mode : new String[] { TaxDatabase.DISK, TaxDatabase.MEMORY, TaxDatabase.IMMUTABLE }) {
+      TaxDatabase database = new TaxDatabase(path, mode);
+
+      double codeEq = BenchmarkData.time(iterations, () -> {
+        query(database, "SELECT * FROM Tax WHERE code = ?", "ON");
+      });
+      double pstGt = BenchmarkData.time(iterations, () -> {
+        query(database, "SELECT * FROM Tax WHERE pst > ?", 9.0);
+      });
+      log.printf("%-10s %15.2f %13.2f\n", mode, codeEq, pstGt);
+    }
+  }
+
+  private static void query(TaxDatabase database, String query, Object value) throws Exception {
+    try (
+      Connection connection       = database.getConnection();
+      PreparedStatement statement = connection.prepareStatement(query)
+    ) {
+      statement.setObject(1, value);
+      try (ResultSet rs = statement.executeQuery()) {
+        while (rs.next()) {
+          rs.getString("province");
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package miscs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+import com.google.gson.Gson;
+
+import model.TaxBinaryDecoder;
+import model.TaxBinaryEncoder;
+import model.TaxCollection;
+
+
+/**
+ * Compares the size and the encode/decode time of a TaxCollection
+ * in the three formats supported by TaxService: JSON (Gson),
+ * XML (JAXB) and the compact binary format (TaxBinaryEncoder).
+ *
+ * Usage from command-line:
+ *
+ *    java TaxFormatBenchmark [records] [iterations]
+ *
+ * Example:
+ *
+ *    $ java TaxFormatBenchmark 1000 2000
+ *    1000 records, 2000 iterations
+ *    format      bytes   encode (us)   decode (us)
+ *    json        69401        799.31        518.10
+ *    xml         95460       1244.25       1558.49
+ *    bin         30923        145.68         57.88
+ *
+ */
+public class TaxFormatBenchmark {
+  private static PrintStream log = System.out;
+  public static void main(String[] args) throws Exception {
+    int records    = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+    int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+
+    TaxCollection collection = BenchmarkData.taxes(records);
+
+    Gson gson = new Gson();
+    byte[] json = gson.toJson(collection).getBytes("UTF-8");
+
+    JAXBContext context = JAXBContext.newInstance(TaxCollection.class);
+    Marshaller m        = context.createMarshaller();
+    Unmarshaller u      = context.createUnmarshaller();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    m.marshal(collection, baos);
+    byte[] xml = baos.toByteArray();
+
+    byte[] bin = TaxBinaryEncoder.encode(collection);
+
+    log.printf("%d records, %d iterations\n", records, iterations);
+    log.printf("%-8s %8s %13s %13s\n", "format", "bytes", "encode (us)", "decode (us)");
+
+    log.printf("%-8s %8d %13.2f %13.2f\n", "json", json.length,
+      BenchmarkData.time(iterations, () -> gson.toJson(collection).getBytes("UTF-8")),
+      BenchmarkData.time(iterations, () -> gson.fromJson(new String(json, "UTF-8"), TaxCollection.class)));
+
+    log.printf("%-8s %8d %13.2f %13.2f\n", "xml", xml.length,
+      BenchmarkData.time(iterations, () -> m.marshal(collection, new ByteArrayOutputStream())),
+      BenchmarkData.time(iterations, () -> u.unmarshal(new ByteArrayInputStream(xml))));
+
+    log.printf("%-8s %8d %13.2f %13.2f\n", "bin", bin.length,
+      BenchmarkData.time(iterations, () -> TaxBinaryEncoder.encode(collection)),
+      BenchmarkData.time(iterations, () -> TaxBinaryDecoder.decodeCollection(bin)));
+  }
+}
@@ -0,0 +1,114 @@
+package miscs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import model.CompactTax;
+import model.StringDictionary;
+import model.Tax;
+import model.TaxBean;
+import model.TaxBinaryEncoder;
+import model.TaxGson;
+import model.TaxXmlWriter;
+
+
+/**
+ * Measures the heap used per row by a large rate table held as
+ * TaxBeans, the way they come out of JDBC (new Strings on every
+ * row), and as CompactTax records. Checks first that both marshal
+ * to the same JSON, XML and 'bin' output.
+ *
+ * Rows repeat a given number of distinct region names, as regional
+ * rate tables do.
+ *
+ * Usage from command-line:
+ *
+ *    java TaxHeapBenchmark [rows] [names]
+ *
+ * Example:
+ *
+ *    $ java TaxHeapBenchmark 500000 5000
+ *    500000 rows, 5000 distinct names
+ *    record          bytes/row
+ *    TaxBean             180.0
+ *    CompactTax           45.2
+ *
+ * With a name per row, interning cannot share anything and the
+ * dictionary of names costs about what it saves:
+ *
+ *    $ java TaxHeapBenchmark 500000 500000
+ *    500000 rows, 500000 distinct names
+ *    record          bytes/row
+ *    TaxBean             186.4
+ *    CompactTax          175.0
+ *
+ */
+public class TaxHeapBenchmark {
+  private static PrintStream log = System.out;
+
+  private static List<?> retained;
+
+  public static void main(String[] args) throws Exception {
+    int rows  = (args.length > 0) ? Integer.parseInt(args[0]) : 500000;
+    int names = (args.length > 1) ? Integer.parseInt(args[1]) : 5000;
+
+    TaxBean sample = row(1, names);
+    CompactTax compact = CompactTax.of(sample);
+    if (!TaxGson.GSON.toJson(sample).equals(TaxGson.GSON.toJson(compact))
+     || !Arrays.equals(xml(sample), xml(compact))
+     || !Arrays.equals(TaxBinaryEncoder.encode(sample), TaxBinaryEncoder.encode(compact))) {
+      throw new IllegalStateException("CompactTax does not marshal like TaxBean");
+    }
+
+    log.printf("%d rows, %d distinct names\n", rows, names);
+    log.printf("%-12s %12s\n", "record", "bytes/row");
+
+    long base = used();
+    List<TaxBean> beans = new ArrayList<>(rows);
+    for (int i = 0; i < rows; i++) {
+      beans.add(row(i, names));
+    }
+    retained = beans;
+    log.printf("%-12s %12.1f\n", "TaxBean", (used() - base) / (double)rows);
+
+    retained = null;
+    beans    = null;
+    base     = used();
+    StringDictionary dictionary = new StringDictionary();
+    List<CompactTax> compacts   = new ArrayList<>(rows);
+    for (int i = 0; i < rows; i++) {
+      compacts.add(CompactTax.of(dictionary, row(i, names)));
+    }
+    retained = Arrays.asList(compacts, dictionary);
+    log.printf("%-12s %12.1f\n", "CompactTax", (used() - base) / (double)rows);
+  }
+
+  /**
+   * A row as JDBC returns it: every String is a new copy.
+   */
+  private static TaxBean row(int i, int names) {
+    TaxBean bean = BenchmarkData.tax(i);
+    bean.setName(new String("Region " + (i % names)));
+    bean.setCode(new String(bean.getCode()));
+    bean.setType(new String(bean.getType()));
+    return bean;
+  }
+
+  private static byte[] xml(Tax tax) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TaxXmlWriter.write(tax, out);
+    return out.toByteArray();
+  }
+
+  private static long used() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
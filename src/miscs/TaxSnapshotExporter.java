@@ -0,0 +1,75 @@
+package miscs;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import model.TaxBean;
+import model.TaxSnapshot;
+
+
+/**
+ * Exports the Tax table to a memory-mapped snapshot file (see
+ * TaxSnapshot), which TaxService serves from when TAXDB_SNAPSHOT is
+ * set. The file is replaced atomically, so it can be exported again
+ * while a service is using the previous one; the service picks up
+ * the new file when it is restarted.
+ *
+ * Usage from command-line:
+ *
+ *    java TaxSnapshotExporter [database] <file>
+ *
+ * where [database] is a JDBC URL (default ~/4413/pkg/sqlite/Models_R_US.db).
+ *
+ * Example:
+ *
+ *    $ java TaxSnapshotExporter tax.snapshot
+ *    Connected to database: jdbc:sqlite:/cs/home/vwchu/4413/pkg/sqlite/Models_R_US.db
+ *    Exported 13 records to tax.snapshot (1183 bytes)
+ *    Disconnected from database.
+ *
+ */
+public class TaxSnapshotExporter {
+  private static PrintStream log = System.out;
+  public static void main(String[] args) {
+    if (args.length < 1 || args.length > 2) {
+      log.println("Usage: java TaxSnapshotExporter [database] <file>");
+      return;
+    }
+    String home = System.getProperty("user.home");
+    String url  = (args.length > 1) ? args[0] : "jdbc:sqlite:" + home + "/4413/pkg/sqlite/Models_R_US.db";
+    File file   = new File(args[args.length - 1]);
+
+    try (Connection connection = DriverManager.getConnection(url)) {
+      log.printf("Connected to database: %s\n", connection.getMetaData().getURL());
+      List<TaxBean> taxes = new ArrayList<>();
+
+      try (
+        PreparedStatement statement = connection.prepareStatement("SELECT * FROM Tax");
+        ResultSet rs                = statement.executeQuery()
+      ) {
+        while (rs.next()) {
+          TaxBean bean = new TaxBean();
+          bean.setName(rs.getString("province"));
+          bean.setCode(rs.getString("code"));
+          bean.setType(rs.getString("type"));
+          bean.setGst(rs.getDouble("gst"));
+          bean.setPst(rs.getDouble("pst"));
+          taxes.add(bean);
+        }
+      }
+
+      TaxSnapshot.write(taxes, file);
+      log.printf("Exported %d records to %s (%d bytes)\n", taxes.size(), file, file.length());
+    } catch (Exception e) {
+      log.println(e);
+    } finally {
+      log.println("Disconnected from database.");
+    }
+  }
+}
@@ -9,10 +9,9 @@ import java.sql.ResultSet;
 import java.util.List;
 import java.util.ArrayList;
 
-import com.google.gson.Gson;
-
 import model.TaxBean;
 import model.TaxCollection;
+import model.TaxGson;
 
 
 /**
@@ -75,8 +74,7 @@ public class ToJSONExample {
 
           collection.setTaxes(list);
 
-          Gson gson = new Gson();
-          log.println(gson.toJson(collection));
+          log.println(TaxGson.GSON.toJson(collection));
         }
       }
     } catch (SQLException e) {
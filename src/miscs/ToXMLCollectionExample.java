@@ -1,26 +1,22 @@
 package miscs;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement; // import java.sql.Statement;
 import java.sql.SQLException;
 import java.sql.ResultSet;
-import java.util.List;
-import java.util.ArrayList;
-
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Marshaller;
 
 import model.TaxBean;
-import model.TaxCollection;
+import model.TaxXmlWriter;
 
 
 /**
  * An example for serializing the retrieved database
  * records as a XML document. Returns a list of the provinces
- * that have PST greater than the given number.
+ * that have PST greater than the given number. The records are
+ * written with TaxXmlWriter (StAX) as they are fetched.
  *
  * Usage from command-line:
  *
@@ -96,33 +92,22 @@ public class ToXMLCollectionExample {
         statement.setDouble(1, pst);
 
         try (ResultSet rs = statement.executeQuery()) {
-          List<TaxBean> list       = new ArrayList<>();
-          TaxCollection collection = new TaxCollection();
-
-          while (rs.next()) {
-            TaxBean bean = new TaxBean();
-            bean.setName(rs.getString("province"));
-            bean.setCode(rs.getString("code"));
-            bean.setType(rs.getString("type"));
-            bean.setGst(rs.getDouble("gst"));
-            bean.setPst(rs.getDouble("pst"));
-            list.add(bean);
-          }
-
-          collection.setTaxes(list);
-
-          try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            JAXBContext context = JAXBContext.newInstance(TaxCollection.class);
-            Marshaller m = context.createMarshaller();
-            m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-            m.marshal(collection, baos);
-            log.println(baos);
-          } catch (Exception e) {
-            log.println(e);
+          // Each row is written as soon as it has been fetched
+          try (TaxXmlWriter writer = new TaxXmlWriter(log)) {
+            while (rs.next()) {
+              TaxBean bean = new TaxBean();
+              bean.setName(rs.getString("province"));
+              bean.setCode(rs.getString("code"));
+              bean.setType(rs.getString("type"));
+              bean.setGst(rs.getDouble("gst"));
+              bean.setPst(rs.getDouble("pst"));
+              writer.write(bean);
+            }
           }
+          log.println();
         }
       }
-    } catch (SQLException e) {
+    } catch (SQLException | IOException e) {
       log.println(e);
     } finally {
       log.println("Disconnected from database.");
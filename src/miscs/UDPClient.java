@@ -0,0 +1,264 @@
+package miscs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Example UDP client, the datagram counterpart of TCPClient, for
+ * services with a DatagramEndpoint (e.g. SquareRootService with
+ * SQRT_UDP=true).
+ *
+ * Usage:
+ *
+ *    java miscs.UDPClient <host> <port>
+ *    java miscs.UDPClient <host> <port> <requests> [<values per request>]
+ *
+ * With only a host and port, standard input is sent as one datagram
+ * and the response printed. There is no retry: if no response comes
+ * within TIMEOUT, the request (or its response) was lost.
+ *
+ * With a number of requests, it benchmarks SquareRootService over
+ * the same port, with requests of consecutive integers:
+ *
+ *  - TCP         a new connection per request (session mode for
+ *                more than one value per request)
+ *  - UDP         one datagram at a time, waiting for each response
+ *  - UDP window  WINDOW datagrams in flight, sending one more for
+ *                each response
+ *
+ * Latencies are only measured one request at a time. Requests still
+ * unanswered after TIMEOUT are counted as lost. As the first value of
+ * request i is i * values, a response is matched to its request by
+ * its first root, so a late response to a lost request is not taken
+ * for the answer to another.
+ *
+ * Example:
+ *
+ *    $ SQRT_UDP=true java services.SquareRootService
+ *    Server listening on vm/127.0.0.1:42439
+ *    UDP listening on /127.0.0.1:42439
+ *
+ *    $ java miscs.UDPClient vm 42439 20000
+ *    20000 requests of 1 value(s)
+ *
+ *                   requests/s     values/s   p50 (us)   p99 (us)     lost
+ *    TCP                  5354         5354        116       2438        0
+ *    UDP                 46155        46155          9         44        0
+ *    UDP window         107029       107029          -          -        0
+ *
+ */
+public class UDPClient {
+  private static PrintStream log = System.out;
+
+  private static final long TIMEOUT = 200; // ms
+  private static final int WINDOW   = 32;
+
+  private static String host;
+  private static int port;
+  private static int values;
+  private static boolean report;
+
+  private static byte[] request(int i) {
+    StringBuilder request = new StringBuilder();
+    for (int v = 0; v < values; v++) {
+      request.append(i * values + v).append('\n');
+    }
+    return request.toString().getBytes();
+  }
+
+  /**
+   * The request a response answers, from its first root, or -1.
+   */
+  private static int index(ByteBuffer response) {
+    int end = 0;
+    while (end < response.position() && response.get(end) != '\n') {
+      end++;
+    }
+    try {
+      double root = Double.parseDouble(new String(response.array(), 0, end));
+      return (int)(Math.round(root * root) / values);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static DatagramChannel connect() throws Exception {
+    DatagramChannel channel = DatagramChannel.open();
+    channel.connect(new InetSocketAddress(host, port));
+    channel.configureBlocking(false);
+    return channel;
+  }
+
+  /**
+   * Waits up to TIMEOUT for a datagram. Returns false if none came.
+   */
+  private static boolean receive(DatagramChannel channel, Selector selector, ByteBuffer buf) throws Exception {
+    buf.clear();
+    if (channel.read(buf) > 0) {
+      return true;
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+    long left;
+    while ((left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+      selector.select(left);
+      selector.selectedKeys().clear();
+      if (channel.read(buf) > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void send(byte[] request) throws Exception {
+    try (DatagramChannel channel = connect(); Selector selector = Selector.open()) {
+      channel.register(selector, SelectionKey.OP_READ);
+      channel.write(ByteBuffer.wrap(request));
+
+      ByteBuffer response = ByteBuffer.allocate(65507);
+      if (receive(channel, selector, response)) {
+        log.print(new String(response.array(), 0, response.position()));
+      } else {
+        log.println("No response within " + TIMEOUT + " ms");
+      }
+    }
+  }
+
+  // Benchmarks
+
+  private static void row(String name, int requests, long elapsed, long[] latencies, int lost) {
+    if (!report) {
+      return;
+    }
+    String p50 = "-", p99 = "-";
+    if (latencies != null && requests > lost) {
+      long[] sorted = Arrays.copyOf(latencies, requests - lost);
+      Arrays.sort(sorted);
+      p50 = String.format("%.0f", sorted[sorted.length / 2] / 1000.0);
+      p99 = String.format("%.0f", sorted[(int)(sorted.length * 0.99)] / 1000.0);
+    }
+    double seconds = elapsed / 1e9;
+    log.printf("%-12s %12.0f %12.0f %10s %10s %8d\n",
+      name, (requests - lost) / seconds, (requests - lost) * (double)values / seconds, p50, p99, lost);
+  }
+
+  private static void tcp(int requests) throws Exception {
+    long[] latencies = new long[requests];
+    byte[] buf       = new byte[65536];
+    long started     = System.nanoTime();
+
+    for (int i = 0; i < requests; i++) {
+      long start = System.nanoTime();
+      try (Socket client = new Socket(host, port)) {
+        OutputStream req = client.getOutputStream();
+        if (values > 1) {
+          req.write("session\n".getBytes());
+        }
+        req.write(request(i));
+        client.shutdownOutput();
+
+        InputStream res = client.getInputStream();
+        while (res.read(buf) >= 0) { } // Until the server closes
+      }
+      latencies[i] = System.nanoTime() - start;
+    }
+    row("TCP", requests, System.nanoTime() - started, latencies, 0);
+  }
+
+  private static void udp(int requests) throws Exception {
+    try (DatagramChannel channel = connect(); Selector selector = Selector.open()) {
+      channel.register(selector, SelectionKey.OP_READ);
+      ByteBuffer response = ByteBuffer.allocate(65507);
+      long[] latencies    = new long[requests];
+      int lost            = 0;
+      long started        = System.nanoTime();
+
+      for (int i = 0; i < requests; i++) {
+        long start = System.nanoTime();
+        channel.write(ByteBuffer.wrap(request(i)));
+        boolean answered = false;
+        while (!answered && receive(channel, selector, response)) {
+          answered = index(response) == i; // Else a late response to a lost request
+        }
+        if (answered) {
+          latencies[i - lost] = System.nanoTime() - start;
+        } else {
+          lost++;
+        }
+      }
+      row("UDP", requests, System.nanoTime() - started, latencies, lost);
+    }
+  }
+
+  private static void window(int requests) throws Exception {
+    try (DatagramChannel channel = connect(); Selector selector = Selector.open()) {
+      channel.register(selector, SelectionKey.OP_READ);
+      ByteBuffer response = ByteBuffer.allocate(65507);
+      boolean[] waiting   = new boolean[requests];
+      int next            = 0;
+      int pending         = 0;
+      int lost            = 0;
+      long started        = System.nanoTime();
+
+      while (next < requests || pending > 0) {
+        while (pending < WINDOW && next < requests) {
+          waiting[next] = true;
+          channel.write(ByteBuffer.wrap(request(next++)));
+          pending++;
+        }
+        if (receive(channel, selector, response)) {
+          int i = index(response);
+          if (i >= 0 && i < next && waiting[i]) { // Else a late response to a lost request
+            waiting[i] = false;
+            pending--;
+          }
+        } else {
+          lost   += pending; // None came back in time: give up on them
+          pending = 0;
+          Arrays.fill(waiting, 0, next, false);
+        }
+      }
+      row("UDP window", requests, System.nanoTime() - started, null, lost);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    host = args[0];
+    port = Integer.parseInt(args[1]);
+
+    if (args.length == 2) {
+      ByteArrayOutputStream request = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      int n;
+      while ((n = System.in.read(buf)) >= 0) {
+        request.write(buf, 0, n);
+      }
+      send(request.toByteArray());
+      return;
+    }
+
+    int requests = Integer.parseInt(args[2]);
+    values       = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+
+    // Warm up both sides first
+    tcp(Math.min(requests, 1000));
+    udp(Math.min(requests, 1000));
+    report = true;
+
+    log.printf("%d requests of %d value(s)\n\n", requests, values);
+    log.printf("%-12s %12s %12s %10s %10s %8s\n", "", "requests/s", "values/s", "p50 (us)", "p99 (us)", "lost");
+    tcp(requests);
+    udp(requests);
+    window(requests);
+  }
+}
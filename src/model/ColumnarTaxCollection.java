@@ -0,0 +1,266 @@
+package model;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A TaxCollection stored by column rather than as a list of beans:
+ * pst and gst in double[] arrays, and name, code and type as int ids
+ * into StringDictionary columns (-1 for null).
+ *
+ * Filters and aggregates over pst/gst (countPstAbove, averagePstAbove,
+ * ...) scan a single primitive array, which the JIT can unroll and
+ * vectorize, instead of following a pointer to a bean per row.
+ *
+ * It is a drop-in TaxCollection: getTaxes() returns a live list of
+ * the rows, which creates a TaxBean for a row only when the row is
+ * read, e.g. while being serialized. Changing such a bean does not
+ * change the collection; the list's add(), set() and remove() do,
+ * copying records into the columns, as setTaxes() and add() do.
+ * Inserting or removing a row other than the last shifts the columns.
+ */
+public class ColumnarTaxCollection extends TaxCollection {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final int NULL = -1;
+
+  private final StringDictionary names;
+  private final StringDictionary codes;
+  private final StringDictionary types;
+
+  private int size;
+  private int[] name;
+  private int[] code;
+  private int[] type;
+  private double[] pst;
+  private double[] gst;
+
+  public ColumnarTaxCollection() {
+    this(16);
+  }
+
+  public ColumnarTaxCollection(int capacity) {
+    this(capacity, new StringDictionary(), new StringDictionary(), new StringDictionary());
+  }
+
+  private ColumnarTaxCollection(int capacity, StringDictionary names, StringDictionary codes, StringDictionary types) {
+    this.names = names;
+    this.codes = codes;
+    this.types = types;
+    capacity = Math.max(capacity, 1);
+    name = new int[capacity];
+    code = new int[capacity];
+    type = new int[capacity];
+    pst  = new double[capacity];
+    gst  = new double[capacity];
+  }
+
+  /**
+   * Copies the records of any collection into columns.
+   */
+  public static ColumnarTaxCollection of(TaxCollection collection) {
+    if (collection instanceof ColumnarTaxCollection) {
+      return (ColumnarTaxCollection)collection;
+    }
+    List<TaxBean> taxes = collection.getTaxes();
+    ColumnarTaxCollection columns = new ColumnarTaxCollection((taxes == null) ? 0 : taxes.size());
+    columns.setTaxes(taxes);
+    columns.setUnknown(collection.getUnknown());
+    columns.setNext(collection.getNext());
+    return columns;
+  }
+
+  public void add(Tax tax) {
+    insert(size, tax);
+  }
+
+  private void insert(int row, Tax tax) {
+    if (row < 0 || row > size) {
+      throw new IndexOutOfBoundsException("Row: " + row + ", size: " + size);
+    }
+    if (size == pst.length) {
+      int capacity = size * 2;
+      name = Arrays.copyOf(name, capacity);
+      code = Arrays.copyOf(code, capacity);
+      type = Arrays.copyOf(type, capacity);
+      pst  = Arrays.copyOf(pst,  capacity);
+      gst  = Arrays.copyOf(gst,  capacity);
+    }
+    if (row < size) {
+      shift(row, row + 1, size - row);
+    }
+    size++;
+    put(row, tax);
+  }
+
+  private void put(int row, Tax tax) {
+    name[row] = id(names, tax.getName());
+    code[row] = id(codes, tax.getCode());
+    type[row] = id(types, tax.getType());
+    pst[row]  = tax.getPst();
+    gst[row]  = tax.getGst();
+  }
+
+  private void delete(int row) {
+    check(row);
+    shift(row + 1, row, size - row - 1);
+    size--;
+  }
+
+  private void shift(int from, int to, int rows) {
+    System.arraycopy(name, from, name, to, rows);
+    System.arraycopy(code, from, code, to, rows);
+    System.arraycopy(type, from, type, to, rows);
+    System.arraycopy(pst,  from, pst,  to, rows);
+    System.arraycopy(gst,  from, gst,  to, rows);
+  }
+
+  private static int id(StringDictionary dictionary, String value) {
+    return (value == null) ? NULL : dictionary.id(value);
+  }
+
+  private static String value(StringDictionary dictionary, int id) {
+    return (id == NULL) ? null : dictionary.get(id);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public String getName(int row) { return value(names, name[check(row)]); }
+  public String getCode(int row) { return value(codes, code[check(row)]); }
+  public String getType(int row) { return value(types, type[check(row)]); }
+  public double getPst(int row)  { return pst[check(row)]; }
+  public double getGst(int row)  { return gst[check(row)]; }
+
+  private int check(int row) {
+    if (row < 0 || row >= size) {
+      throw new IndexOutOfBoundsException("Row: " + row + ", size: " + size);
+    }
+    return row;
+  }
+
+  /**
+   * Creates a TaxBean holding a copy of the row.
+   */
+  public TaxBean getBean(int row) {
+    TaxBean bean = new TaxBean();
+    bean.setName(getName(row));
+    bean.setCode(getCode(row));
+    bean.setType(getType(row));
+    bean.setPst(pst[row]);
+    bean.setGst(gst[row]);
+    return bean;
+  }
+
+  // Filters and aggregates
+
+  public int countPstAbove(double threshold) {
+    double[] pst = this.pst;
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      count += (pst[i] > threshold) ? 1 : 0;
+    }
+    return count;
+  }
+
+  /**
+   * The average PST of the rows with PST above the threshold,
+   * or NaN if there are none.
+   */
+  public double averagePstAbove(double threshold) {
+    double[] pst = this.pst;
+    double sum = 0;
+    int count  = 0;
+    for (int i = 0; i < size; i++) {
+      double value = pst[i];
+      if (value > threshold) {
+        sum += value;
+        count++;
+      }
+    }
+    return (count == 0) ? Double.NaN : sum / count;
+  }
+
+  public double averageGst() {
+    double[] gst = this.gst;
+    double sum = 0;
+    for (int i = 0; i < size; i++) {
+      sum += gst[i];
+    }
+    return (size == 0) ? Double.NaN : sum / size;
+  }
+
+  /**
+   * The rows with PST above the threshold, as a new collection.
+   * It shares this collection's dictionaries, so the string
+   * columns are copied as ids.
+   */
+  public ColumnarTaxCollection filterPstAbove(double threshold) {
+    ColumnarTaxCollection result = new ColumnarTaxCollection(countPstAbove(threshold), names, codes, types);
+    for (int i = 0; i < size; i++) {
+      if (pst[i] > threshold) {
+        result.name[result.size] = name[i];
+        result.code[result.size] = code[i];
+        result.type[result.size] = type[i];
+        result.pst[result.size]  = pst[i];
+        result.gst[result.size]  = gst[i];
+        result.size++;
+      }
+    }
+    return result;
+  }
+
+  // TaxCollection
+
+  @Override
+  public List<TaxBean> getTaxes() {
+    return new AbstractList<TaxBean>() {
+      @Override
+      public TaxBean get(int row) {
+        return getBean(row);
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+
+      @Override
+      public TaxBean set(int row, TaxBean tax) {
+        TaxBean previous = getBean(row);
+        put(row, tax);
+        return previous;
+      }
+
+      @Override
+      public void add(int row, TaxBean tax) {
+        insert(row, tax);
+        modCount++;
+      }
+
+      @Override
+      public TaxBean remove(int row) {
+        TaxBean previous = getBean(row);
+        delete(row);
+        modCount++;
+        return previous;
+      }
+    };
+  }
+
+  /**
+   * Replaces the rows with copies of the given records. They are
+   * read first, so the list may be this collection's getTaxes().
+   */
+  @Override
+  public void setTaxes(List<TaxBean> taxes) {
+    TaxBean[] copy = (taxes == null) ? new TaxBean[0] : taxes.toArray(new TaxBean[0]);
+    size = 0;
+    for (TaxBean tax : copy) {
+      add(tax);
+    }
+  }
+}
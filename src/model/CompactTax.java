@@ -0,0 +1,134 @@
+package model;
+
+/**
+ * An immutable, compact Tax rate record for holding large rate
+ * tables in memory.
+ *
+ * Instead of three Strings per record, the two-letter code is packed
+ * into a short, and the type is an id into the shared TYPES
+ * dictionary. The name can be interned in a dictionary of the table
+ * the record belongs to, so its rows with the same name share one
+ * String, and the names go away with the table. It marshals to the same JSON
+ * (TaxGson), XML (TaxXmlWriter) and 'bin' output as the equivalent
+ * TaxBean.
+ */
+public final class CompactTax implements Tax {
+
+  /** The distinct 'type' values, e.g. HST, GST, PST+GST. */
+  public static final StringDictionary TYPES = new StringDictionary();
+
+  private static final short NO_CODE = 0;
+  private static final short NO_TYPE = -1;
+
+  private final String name;
+  private final short code;
+  private final short type;
+  private final double pst;
+  private final double gst;
+
+  private CompactTax(String name, short code, short type, double pst, double gst) {
+    this.name = name;
+    this.code = code;
+    this.type = type;
+    this.pst  = pst;
+    this.gst  = gst;
+  }
+
+  /**
+   * Creates a record. The code must be null or two characters
+   * below U+0100 (e.g. ON, QC).
+   */
+  public static CompactTax of(String name, String code, String type, double pst, double gst) {
+    return of(null, name, code, type, pst, gst);
+  }
+
+  /**
+   * Creates a record whose name is interned in 'names', the
+   * dictionary of the table it is added to; null not to intern it.
+   */
+  public static CompactTax of(StringDictionary names, String name, String code, String type, double pst, double gst) {
+    int id = (type == null) ? NO_TYPE : TYPES.id(type);
+    if (id > Short.MAX_VALUE) {
+      throw new IllegalStateException("Too many distinct types");
+    }
+    return new CompactTax((names == null) ? name : names.intern(name), packCode(code), (short)id, pst, gst);
+  }
+
+  public static CompactTax of(Tax tax) {
+    return of(null, tax);
+  }
+
+  public static CompactTax of(StringDictionary names, Tax tax) {
+    if (tax instanceof CompactTax && names == null) {
+      return (CompactTax)tax;
+    }
+    return of(names, tax.getName(), tax.getCode(), tax.getType(), tax.getPst(), tax.getGst());
+  }
+
+  static short packCode(String code) {
+    if (code == null) {
+      return NO_CODE;
+    }
+    if (code.length() != 2 || code.charAt(0) == 0 || code.charAt(0) > 0xFF || code.charAt(1) > 0xFF) {
+      throw new IllegalArgumentException("Expected a two-letter code, got: " + code);
+    }
+    return (short)((code.charAt(0) << 8) | code.charAt(1));
+  }
+
+  static String unpackCode(short code) {
+    if (code == NO_CODE) {
+      return null;
+    }
+    return new String(new char[] { (char)((code >> 8) & 0xFF), (char)(code & 0xFF) });
+  }
+
+  public String getName() { return name; }
+  public String getCode() { return unpackCode(code); }
+  public String getType() { return (type == NO_TYPE) ? null : TYPES.get(type); }
+  public double getPst()  { return pst; }
+  public double getGst()  { return gst; }
+
+  /**
+   * The packed two-letter code, for comparisons without a String.
+   */
+  public short getPackedCode() { return code; }
+
+  /**
+   * Returns a mutable copy, e.g. for JAXB.
+   */
+  public TaxBean toBean() {
+    TaxBean bean = new TaxBean();
+    bean.setName(name);
+    bean.setCode(getCode());
+    bean.setType(getType());
+    bean.setPst(pst);
+    bean.setGst(gst);
+    return bean;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof CompactTax)) {
+      return false;
+    }
+    CompactTax that = (CompactTax)other;
+    return code == that.code && type == that.type
+        && Double.compare(pst, that.pst) == 0 && Double.compare(gst, that.gst) == 0
+        && (name == null ? that.name == null : name.equals(that.name));
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = code * 31 + type;
+    hash = hash * 31 + Double.hashCode(pst);
+    hash = hash * 31 + Double.hashCode(gst);
+    return hash * 31 + ((name == null) ? 0 : name.hashCode());
+  }
+
+  public String toString() {
+    return String.format("Taxes in %s (%s):\n"
+      + "- Type = %s\n"
+      + "- GST  = %.2f%%\n"
+      + "- PST  = %.2f%%\n", name, getCode(), getType(), gst, pst);
+  }
+}
@@ -0,0 +1,31 @@
+package model;
+
+import java.io.IOException;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Reads and writes a CompactTax as JSON, in exactly the same form
+ * as a TaxBean (see TaxBeanAdapter).
+ */
+public class CompactTaxAdapter extends TypeAdapter<CompactTax> {
+
+  private final TaxBeanAdapter beans;
+
+  public CompactTaxAdapter(TaxBeanAdapter beans) {
+    this.beans = beans;
+  }
+
+  @Override
+  public void write(JsonWriter out, CompactTax tax) throws IOException {
+    TaxBeanAdapter.writeTax(out, tax);
+  }
+
+  @Override
+  public CompactTax read(JsonReader in) throws IOException {
+    TaxBean bean = beans.read(in);
+    return (bean == null) ? null : CompactTax.of(bean);
+  }
+}
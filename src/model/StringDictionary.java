@@ -0,0 +1,73 @@
+package model;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns small integer ids to distinct strings, and keeps a single
+ * copy of each. Ids are dense, in the order the strings were first
+ * seen, so they can index arrays; a dictionary never forgets a string.
+ *
+ * Lookups of strings already in the dictionary do not lock, so one
+ * dictionary can be shared by many threads.
+ */
+public class StringDictionary implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+  private volatile String[] values = new String[16];
+  private int size;
+
+  /**
+   * Returns the id of the string, adding it if it is new.
+   */
+  public int id(String value) {
+    Integer id = ids.get(value);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = ids.get(value);
+      if (id != null) {
+        return id;
+      }
+      String[] values = this.values;
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size] = value;
+      this.values = values; // publishes the new entry before its id
+      ids.put(value, size);
+      return size++;
+    }
+  }
+
+  /**
+   * Returns the id of the string, or -1 if it is not in the dictionary.
+   */
+  public int find(String value) {
+    Integer id = ids.get(value);
+    return (id == null) ? -1 : id;
+  }
+
+  public String get(int id) {
+    return values[id];
+  }
+
+  /**
+   * Returns the dictionary's copy of the string, adding it if it is new.
+   */
+  public String intern(String value) {
+    if (value == null) {
+      return null;
+    }
+    int id = id(value); // before reading 'values', which id() may grow
+    return values[id];
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+}
@@ -0,0 +1,14 @@
+package model;
+
+/**
+ * The read-only view of a Tax rate record, shared by the mutable
+ * TaxBean and the compact CompactTax. The JSON, XML and binary
+ * writers accept any Tax, so both marshal to the same output.
+ */
+public interface Tax {
+  String getName();
+  String getCode();
+  String getType();
+  double getPst();
+  double getGst();
+}
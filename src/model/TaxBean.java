@@ -4,7 +4,7 @@ import java.io.Serializable;
 import javax.xml.bind.annotation.XmlRootElement;
 
 @XmlRootElement(name = "tax")
-public class TaxBean implements Serializable {
+public class TaxBean implements Serializable, Tax {
 
   private static final long serialVersionUID = 1L;
 
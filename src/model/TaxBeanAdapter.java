@@ -0,0 +1,73 @@
+package model;
+
+import java.io.IOException;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Reads and writes a TaxBean as JSON without reflection.
+ *
+ * Produces the same JSON as Gson's reflective adapter: the fields
+ * in declaration order (name, code, type, pst, gst), with null
+ * strings left out. Unknown fields are skipped when reading.
+ */
+public class TaxBeanAdapter extends TypeAdapter<TaxBean> {
+
+  @Override
+  public void write(JsonWriter out, TaxBean bean) throws IOException {
+    writeTax(out, bean);
+  }
+
+  /**
+   * Writes any Tax record, e.g. a CompactTax, as a TaxBean.
+   */
+  static void writeTax(JsonWriter out, Tax bean) throws IOException {
+    if (bean == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    if (bean.getName() != null) {
+      out.name("name").value(bean.getName());
+    }
+    if (bean.getCode() != null) {
+      out.name("code").value(bean.getCode());
+    }
+    if (bean.getType() != null) {
+      out.name("type").value(bean.getType());
+    }
+    out.name("pst").value(bean.getPst());
+    out.name("gst").value(bean.getGst());
+    out.endObject();
+  }
+
+  @Override
+  public TaxBean read(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    TaxBean bean = new TaxBean();
+    in.beginObject();
+    while (in.hasNext()) {
+      String field = in.nextName();
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        continue;
+      }
+      switch (field) {
+        case "name": bean.setName(in.nextString()); break;
+        case "code": bean.setCode(in.nextString()); break;
+        case "type": bean.setType(in.nextString()); break;
+        case "pst":  bean.setPst(in.nextDouble());  break;
+        case "gst":  bean.setGst(in.nextDouble());  break;
+        default:     in.skipValue();
+      }
+    }
+    in.endObject();
+    return bean;
+  }
+}
@@ -0,0 +1,218 @@
+package model;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes Tax records from the compact binary ('bin') wire format.
+ * See TaxBinaryEncoder for the layout of a message.
+ *
+ * Messages are length-prefixed, so several may be read one after
+ * another from the same stream. An error message (KIND_ERROR) is
+ * thrown as an ErrorResponse.
+ *
+ * Lengths and counts come from the wire, so they are checked before
+ * anything is sized from them: a message over MAX_MESSAGE bytes, or
+ * a count of more items than the bytes left could hold, is an
+ * IOException.
+ */
+public class TaxBinaryDecoder {
+
+  public static final int MAX_MESSAGE = 1 << 26;
+
+  // The fewest bytes an item can take: a record is two strings, a
+  // type and two doubles; a string is its length
+  private static final int MIN_RECORD = 1 + 1 + 1 + 8 + 8;
+  private static final int MIN_STRING = 1;
+
+  /**
+   * The service answered with an error instead of records.
+   */
+  public static class ErrorResponse extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ErrorResponse(String message) {
+      super(message);
+    }
+  }
+
+  private final byte[] buf;
+  private int pos;
+
+  private TaxBinaryDecoder(byte[] buf) {
+    this.buf = buf;
+  }
+
+  /**
+   * Reads a single message from the stream.
+   * Returns either a TaxBean or a TaxCollection.
+   */
+  public static Object decode(InputStream in) throws IOException {
+    int length = readVarint(in);
+    if (length > MAX_MESSAGE) {
+      throw new IOException("Message too long: " + length + " bytes");
+    }
+    byte[] body = new byte[length];
+    (new DataInputStream(in)).readFully(body);
+    return (new TaxBinaryDecoder(body)).readBody();
+  }
+
+  public static Object decode(byte[] message) throws IOException {
+    return decode(new ByteArrayInputStream(message));
+  }
+
+  public static TaxBean decodeBean(byte[] message) throws IOException {
+    Object result = decode(message);
+    if (!(result instanceof TaxBean)) {
+      throw new IOException("Expected a single tax record");
+    }
+    return (TaxBean)result;
+  }
+
+  public static TaxCollection decodeCollection(byte[] message) throws IOException {
+    Object result = decode(message);
+    if (!(result instanceof TaxCollection)) {
+      throw new IOException("Expected a collection of tax records");
+    }
+    return (TaxCollection)result;
+  }
+
+  private Object readBody() throws IOException {
+    int version = readByte();
+    if (version < 1 || version > TaxBinaryEncoder.VERSION) {
+      throw new IOException("Unsupported schema version: " + version);
+    }
+    int kind = readByte();
+    if (kind == TaxBinaryEncoder.KIND_ERROR) {
+      throw new ErrorResponse(string());
+    }
+
+    String[] types = new String[count(MIN_STRING)];
+    for (int i = 0; i < types.length; i++) {
+      types[i] = string();
+    }
+
+    int count = count(MIN_RECORD);
+    List<TaxBean> list = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      TaxBean bean = new TaxBean();
+      bean.setName(string());
+      bean.setCode(string());
+      int type = varint();
+      if (type > types.length) {
+        throw new IOException("Invalid type index: " + type);
+      }
+      bean.setType((type == 0) ? null : types[type - 1]);
+      bean.setPst(readDouble());
+      bean.setGst(readDouble());
+      list.add(bean);
+    }
+
+    if (kind == TaxBinaryEncoder.KIND_TAX) {
+      if (count != 1) {
+        throw new IOException("Expected a single tax record, got: " + count);
+      }
+      return list.get(0);
+    } else if (kind == TaxBinaryEncoder.KIND_TAXES) {
+      TaxCollection collection = new TaxCollection();
+      collection.setTaxes(list);
+
+      int unknowns = count(MIN_STRING);
+      if (unknowns > 0) {
+        List<String> unknown = new ArrayList<>(unknowns);
+        for (int i = 0; i < unknowns; i++) {
+          unknown.add(string());
+        }
+        collection.setUnknown(unknown);
+      }
+      if (version >= 2) {
+        collection.setNext(string());
+      }
+      return collection;
+    } else {
+      throw new IOException("Unrecognized kind: " + kind);
+    }
+  }
+
+  private int readByte() throws IOException {
+    if (pos >= buf.length) {
+      throw new EOFException("Truncated message");
+    }
+    return buf[pos++] & 0xFF;
+  }
+
+  private int varint() throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = readByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return checked(value);
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  // A count of items of at least 'size' bytes each, that fit in the rest
+  private int count(int size) throws IOException {
+    int count = varint();
+    if ((long)count * size > buf.length - pos) {
+      throw new IOException("Invalid count: " + count + " items in " + (buf.length - pos) + " bytes");
+    }
+    return count;
+  }
+
+  // Varints are at most 31 bits: a negative value is not one
+  private static int checked(int value) throws IOException {
+    if (value < 0) {
+      throw new IOException("Malformed varint: " + (value & 0xFFFFFFFFL));
+    }
+    return value;
+  }
+
+  private String string() throws IOException {
+    int length = varint();
+    if (length == 0) {
+      return null;
+    }
+    length -= 1;
+    if (length > buf.length - pos) {
+      throw new EOFException("Truncated message");
+    }
+    String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+    pos += length;
+    return value;
+  }
+
+  private double readDouble() throws IOException {
+    if (8 > buf.length - pos) {
+      throw new EOFException("Truncated message");
+    }
+    long bits = 0;
+    for (int i = 0; i < 8; i++) {
+      bits = (bits << 8) | (buf[pos++] & 0xFF);
+    }
+    return Double.longBitsToDouble(bits);
+  }
+
+  private static int readVarint(InputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException("Truncated message");
+      }
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return checked(value);
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+}
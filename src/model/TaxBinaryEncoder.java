@@ -0,0 +1,160 @@
+package model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes Tax records in the compact binary ('bin') wire format.
+ *
+ * A message is laid out as:
+ *
+ *    varint   length of the rest of the message, in bytes
+ *    byte     schema version (VERSION)
+ *    byte     kind (KIND_TAX, KIND_TAXES or KIND_ERROR)
+ *    varint   number of entries in the 'type' dictionary
+ *    string   ... each dictionary entry
+ *    varint   number of records
+ *    record   ... each record:
+ *               string  name
+ *               string  code
+ *               varint  type, as dictionary index + 1 (0 is null)
+ *               double  pst, 8 bytes big-endian IEEE 754
+ *               double  gst, 8 bytes big-endian IEEE 754
+ *    varint   number of unknown codes (KIND_TAXES only)
+ *    string   ... each unknown code
+ *    string   continuation token (KIND_TAXES, version 2 only)
+ *
+ * A KIND_ERROR message, the answer to a request that failed, has a
+ * single string after the kind, the error message, and no dictionary
+ * or records.
+ *
+ * A string is a varint of its UTF-8 length + 1, followed by the
+ * bytes; a length of 0 stands for null. Varints are unsigned
+ * LEB128, 7 bits per byte, least significant group first.
+ *
+ * Version 2 only adds the continuation token of paged results.
+ * Messages without one are still written as version 1, so they
+ * can be read by decoders that only know version 1.
+ */
+public class TaxBinaryEncoder {
+
+  public static final int VERSION    = 2;
+  public static final int KIND_TAX   = 0;
+  public static final int KIND_TAXES = 1;
+  public static final int KIND_ERROR = 2;
+
+  private TaxBinaryEncoder() { }
+
+  public static byte[] encode(Tax bean) {
+    List<Tax> list = new ArrayList<>();
+    list.add(bean);
+    return encode(KIND_TAX, list, null, null);
+  }
+
+  public static byte[] encode(TaxCollection collection) {
+    return encode(KIND_TAXES, collection.getTaxes(), collection.getUnknown(), collection.getNext());
+  }
+
+  public static byte[] encodeError(String message) {
+    ByteArrayOutputStream body = new ByteArrayOutputStream(message.length() + 8);
+    body.write(1);
+    body.write(KIND_ERROR);
+    writeString(body, message);
+    return frame(body);
+  }
+
+  public static void write(Tax bean, OutputStream out) throws IOException {
+    out.write(encode(bean));
+  }
+
+  public static void write(TaxCollection collection, OutputStream out) throws IOException {
+    out.write(encode(collection));
+  }
+
+  private static byte[] encode(int kind, List<? extends Tax> taxes, List<String> unknown, String next) {
+    int count = (taxes == null) ? 0 : taxes.size();
+
+    // Build the dictionary of the distinct 'type' values
+    Map<String, Integer> ids = new HashMap<>();
+    List<String> types       = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      String type = taxes.get(i).getType();
+      if (type != null && !ids.containsKey(type)) {
+        ids.put(type, types.size());
+        types.add(type);
+      }
+    }
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream(32 + count * 40);
+    body.write((next == null) ? 1 : VERSION);
+    body.write(kind);
+
+    writeVarint(body, types.size());
+    for (String type : types) {
+      writeString(body, type);
+    }
+
+    writeVarint(body, count);
+    for (int i = 0; i < count; i++) {
+      Tax bean = taxes.get(i);
+      writeString(body, bean.getName());
+      writeString(body, bean.getCode());
+      writeVarint(body, (bean.getType() == null) ? 0 : ids.get(bean.getType()) + 1);
+      writeDouble(body, bean.getPst());
+      writeDouble(body, bean.getGst());
+    }
+
+    if (kind == KIND_TAXES) {
+      int unknowns = (unknown == null) ? 0 : unknown.size();
+      writeVarint(body, unknowns);
+      for (int i = 0; i < unknowns; i++) {
+        writeString(body, unknown.get(i));
+      }
+      if (next != null) {
+        writeString(body, next);
+      }
+    }
+
+    return frame(body);
+  }
+
+  // Prefixes the body with its length
+  private static byte[] frame(ByteArrayOutputStream body) {
+    ByteArrayOutputStream message = new ByteArrayOutputStream(body.size() + 5);
+    writeVarint(message, body.size());
+    byte[] bytes = body.toByteArray();
+    message.write(bytes, 0, bytes.length);
+    return message.toByteArray();
+  }
+
+  static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  static void writeString(ByteArrayOutputStream out, String value) {
+    if (value == null) {
+      writeVarint(out, 0);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarint(out, bytes.length + 1);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  static void writeDouble(ByteArrayOutputStream out, double value) {
+    long bits = Double.doubleToLongBits(value);
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      out.write((int)(bits >>> shift));
+    }
+  }
+}
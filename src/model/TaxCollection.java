@@ -4,17 +4,27 @@ import java.io.Serializable;
 import java.util.List;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
 
 /**
  * A collection of Tax records.
  * Represented as a List.
+ *
+ * For multi-key lookups, the requested codes that had no
+ * matching record are listed in 'unknown'. For paged lookups,
+ * 'next' holds the continuation token of the next page. Both
+ * are left null otherwise, so they are omitted from the JSON/XML
+ * output.
  */
 @XmlRootElement(name="taxes")
+@XmlType(propOrder={"taxes", "unknown", "next"})
 public class TaxCollection implements Serializable {
 
   private static final long serialVersionUID = 1L;
 
   private List<TaxBean> taxes;
+  private List<String> unknown;
+  private String next;
   public TaxCollection() { }
 
   @XmlElement(name="tax")
@@ -26,11 +36,35 @@ public class TaxCollection implements Serializable {
     this.taxes = taxes;
   }
 
+  @XmlElement(name="unknown")
+  public List<String> getUnknown() {
+    return unknown;
+  }
+
+  public void setUnknown(List<String> unknown) {
+    this.unknown = unknown;
+  }
+
+  @XmlElement(name="next")
+  public String getNext() {
+    return next;
+  }
+
+  public void setNext(String next) {
+    this.next = next;
+  }
+
   public String toString() {
     String output = "";
-    for (TaxBean tax : taxes) {
+    for (TaxBean tax : getTaxes()) {
       output += tax.toString();
     }
+    if (unknown != null && !unknown.isEmpty()) {
+      output += "Unknown codes: " + String.join(", ", unknown) + "\n";
+    }
+    if (next != null) {
+      output += "Next page: " + next + "\n";
+    }
     return output;
   }
 }
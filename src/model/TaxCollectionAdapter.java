@@ -0,0 +1,115 @@
+package model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Reads and writes a TaxCollection as JSON without reflection.
+ *
+ * Produces the same JSON as Gson's reflective adapter:
+ * {"taxes":[...],"unknown":[...],"next":"..."}, with the
+ * fields that are null left out. The records are handled by
+ * TaxBeanAdapter. Subclasses such as ColumnarTaxCollection are
+ * written the same way, through getTaxes().
+ */
+public class TaxCollectionAdapter extends TypeAdapter<TaxCollection> {
+
+  private final TaxBeanAdapter beans;
+  private final Supplier<? extends TaxCollection> factory;
+
+  public TaxCollectionAdapter(TaxBeanAdapter beans) {
+    this(beans, TaxCollection::new);
+  }
+
+  /**
+   * Reads into the collections the factory creates, e.g. a
+   * ColumnarTaxCollection.
+   */
+  public TaxCollectionAdapter(TaxBeanAdapter beans, Supplier<? extends TaxCollection> factory) {
+    this.beans   = beans;
+    this.factory = factory;
+  }
+
+  @Override
+  public void write(JsonWriter out, TaxCollection collection) throws IOException {
+    if (collection == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    if (collection.getTaxes() != null) {
+      out.name("taxes").beginArray();
+      for (TaxBean bean : collection.getTaxes()) {
+        beans.write(out, bean);
+      }
+      out.endArray();
+    }
+    if (collection.getUnknown() != null) {
+      out.name("unknown").beginArray();
+      for (String code : collection.getUnknown()) {
+        out.value(code);
+      }
+      out.endArray();
+    }
+    if (collection.getNext() != null) {
+      out.name("next").value(collection.getNext());
+    }
+    out.endObject();
+  }
+
+  @Override
+  public TaxCollection read(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    TaxCollection collection = factory.get();
+    in.beginObject();
+    while (in.hasNext()) {
+      String field = in.nextName();
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        continue;
+      }
+      switch (field) {
+        case "taxes":
+          List<TaxBean> taxes = new ArrayList<>();
+          in.beginArray();
+          while (in.hasNext()) {
+            taxes.add(beans.read(in));
+          }
+          in.endArray();
+          collection.setTaxes(taxes);
+          break;
+        case "unknown":
+          List<String> unknown = new ArrayList<>();
+          in.beginArray();
+          while (in.hasNext()) {
+            if (in.peek() == JsonToken.NULL) {
+              in.nextNull();
+              unknown.add(null);
+            } else {
+              unknown.add(in.nextString());
+            }
+          }
+          in.endArray();
+          collection.setUnknown(unknown);
+          break;
+        case "next":
+          collection.setNext(in.nextString());
+          break;
+        default:
+          in.skipValue();
+      }
+    }
+    in.endObject();
+    return collection;
+  }
+}
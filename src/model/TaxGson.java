@@ -0,0 +1,28 @@
+package model;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * The Gson instance shared by the services and examples.
+ *
+ * Gson is thread-safe and caches the type adapters it builds, so
+ * one instance serves every request. TaxBean, TaxCollection and
+ * CompactTax are handled by the hand-written TaxBeanAdapter,
+ * TaxCollectionAdapter and CompactTaxAdapter instead of reflection;
+ * any other type (e.g. the maps HTTPServer returns) falls back to
+ * Gson's defaults.
+ */
+public class TaxGson {
+
+  private static final TaxBeanAdapter BEAN = new TaxBeanAdapter();
+
+  public static final Gson GSON = new GsonBuilder()
+    .registerTypeAdapter(TaxBean.class, BEAN)
+    .registerTypeHierarchyAdapter(TaxCollection.class, new TaxCollectionAdapter(BEAN))
+    .registerTypeAdapter(ColumnarTaxCollection.class, new TaxCollectionAdapter(BEAN, ColumnarTaxCollection::new))
+    .registerTypeAdapter(CompactTax.class, new CompactTaxAdapter(BEAN))
+    .create();
+
+  private TaxGson() { }
+}
@@ -0,0 +1,174 @@
+package model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads the Tax records of a JSON TaxCollection one at a time,
+ * without building the collection, so a document of any size is
+ * read in constant memory.
+ *
+ * Accepts {"taxes":[...],"unknown":[...],"next":"..."} as written
+ * by TaxGson (in any field order), or a bare array of records.
+ * Records are read with TaxBeanAdapter. The 'unknown' and 'next'
+ * fields are available once the records have all been read.
+ *
+ * Usage:
+ *
+ *    try (TaxJsonReader reader = new TaxJsonReader(System.in)) {
+ *      TaxBean bean;
+ *      while ((bean = reader.read()) != null) {
+ *        ...
+ *      }
+ *    }
+ *
+ * or reader.forEach(bean -> ...), or as an Iterator.
+ */
+public class TaxJsonReader implements Iterator<TaxBean>, Closeable {
+
+  private static final TaxBeanAdapter BEAN = new TaxBeanAdapter();
+
+  private final JsonReader json;
+  private boolean inArray;
+  private boolean done;
+  private TaxBean peeked;
+
+  private List<String> unknown;
+  private String next;
+
+  public TaxJsonReader(Reader in) {
+    this.json = new JsonReader(in);
+  }
+
+  public TaxJsonReader(InputStream in) {
+    this(new InputStreamReader(in, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Returns the next record, or null after the last one.
+   */
+  public TaxBean read() throws IOException {
+    if (peeked != null) {
+      TaxBean bean = peeked;
+      peeked = null;
+      return bean;
+    }
+    while (!done) {
+      if (inArray) {
+        if (json.hasNext()) {
+          TaxBean bean = BEAN.read(json);
+          if (bean != null) {
+            return bean;
+          }
+          continue;
+        }
+        json.endArray();
+        inArray = false;
+        if (json.peek() == JsonToken.END_DOCUMENT) {
+          done = true; // a bare array
+        }
+      } else if (json.peek() == JsonToken.BEGIN_ARRAY) {
+        json.beginArray();
+        inArray = true;
+      } else if (json.peek() == JsonToken.BEGIN_OBJECT) {
+        json.beginObject();
+      } else if (json.peek() == JsonToken.END_OBJECT) {
+        json.endObject();
+        done = true;
+      } else {
+        field(json.nextName());
+      }
+    }
+    return null;
+  }
+
+  private void field(String name) throws IOException {
+    if (json.peek() == JsonToken.NULL) {
+      json.nextNull();
+    } else if (name.equals("taxes")) {
+      json.beginArray();
+      inArray = true;
+    } else if (name.equals("unknown")) {
+      unknown = new ArrayList<>();
+      json.beginArray();
+      while (json.hasNext()) {
+        unknown.add(json.nextString());
+      }
+      json.endArray();
+    } else if (name.equals("next")) {
+      next = json.nextString();
+    } else {
+      json.skipValue();
+    }
+  }
+
+  /**
+   * Passes each remaining record to the consumer, and returns
+   * the number of records read.
+   */
+  public long forEach(Consumer<? super TaxBean> consumer) throws IOException {
+    long count = 0;
+    TaxBean bean;
+    while ((bean = read()) != null) {
+      consumer.accept(bean);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * The requested codes that had no record, once all the records
+   * have been read. Null if the document has none.
+   */
+  public List<String> getUnknown() {
+    return unknown;
+  }
+
+  /**
+   * The continuation token of the next page, once all the records
+   * have been read. Null if the document has none.
+   */
+  public String getNext() {
+    return next;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (peeked == null) {
+      try {
+        peeked = read();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return peeked != null;
+  }
+
+  @Override
+  public TaxBean next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    TaxBean bean = peeked;
+    peeked = null;
+    return bean;
+  }
+
+  @Override
+  public void close() throws IOException {
+    json.close();
+  }
+}
@@ -0,0 +1,395 @@
+package model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A read-only snapshot of the Tax table in a binary file, which is
+ * memory-mapped and queried in place: nothing is parsed or loaded at
+ * open, and a record is only decoded when it is part of a result.
+ *
+ * The file is laid out as (all integers big-endian):
+ *
+ *    int      MAGIC ('TAXS')
+ *    int      VERSION
+ *    int      number of records (n)
+ *    int      number of types (t)
+ *    int      offset of the string area
+ *    int      length of the string area
+ *    int      CRC-32 of everything after the header
+ *    int      reserved (0)
+ *    type     t x (int offset, int length) of each type's UTF-8 bytes
+ *    record   n x RECORD bytes, in table order:
+ *               short   code, two 8-bit characters (see CompactTax)
+ *               short   type index (-1 for null)
+ *               int     offset of the name's UTF-8 bytes
+ *               int     length of the name (-1 for null)
+ *               double  pst
+ *               double  gst
+ *               int     reserved (0)
+ *    int      n record numbers, sorted by code
+ *    int      n record numbers, sorted by pst, then code
+ *    bytes    the string area
+ *
+ * Snapshots are written with write() (see TaxSnapshotExporter) to
+ * a temporary file, then renamed, so a reader never sees a partial
+ * file.
+ */
+public class TaxSnapshot {
+
+  public static final int MAGIC   = 0x54415853;
+  public static final int VERSION = 1;
+
+  private static final int HEADER = 32;
+  private static final int RECORD = 32;
+
+  private final File file;
+  private final ByteBuffer buf;
+  private final int count;
+  private final String[] types;
+  private final int records;
+  private final int byCode;
+  private final int byPst;
+  private final int strings;
+
+  private TaxSnapshot(File file, ByteBuffer buf) throws IOException {
+    this.file = file;
+    this.buf  = buf;
+
+    if (buf.capacity() < HEADER || buf.getInt(0) != MAGIC) {
+      throw new IOException("Not a Tax snapshot: " + file);
+    }
+    if (buf.getInt(4) != VERSION) {
+      throw new IOException("Unsupported snapshot version: " + buf.getInt(4));
+    }
+    count   = buf.getInt(8);
+    strings = buf.getInt(16);
+    if (count < 0 || strings < HEADER || (long)strings + buf.getInt(20) != buf.capacity()) {
+      throw new IOException("Corrupt snapshot: " + file);
+    }
+
+    CRC32 crc = new CRC32();
+    ByteBuffer body = buf.duplicate();
+    body.position(HEADER);
+    crc.update(body);
+    if ((int)crc.getValue() != buf.getInt(24)) {
+      throw new IOException("Snapshot checksum mismatch: " + file);
+    }
+
+    // The counts are not covered by the checksum: they must match the layout
+    int typeCount = buf.getInt(12);
+    if (typeCount < 0 || HEADER + typeCount * 8L + count * (long)(RECORD + 8) != strings) {
+      throw new IOException("Corrupt snapshot header: " + file);
+    }
+
+    // Only the few distinct types are decoded up front
+    int length = buf.getInt(20);
+    types = new String[typeCount];
+    for (int i = 0; i < types.length; i++) {
+      int offset = buf.getInt(HEADER + i * 8);
+      int size   = buf.getInt(HEADER + i * 8 + 4);
+      if (offset < 0 || size < 0 || (long)offset + size > length) {
+        throw new IOException("Corrupt snapshot type " + i + ": " + file);
+      }
+      types[i] = string(offset, size);
+    }
+    records = HEADER + types.length * 8;
+    byCode  = records + count * RECORD;
+    byPst   = byCode + count * 4;
+  }
+
+  /**
+   * Maps the snapshot file read-only, and checks its header and checksum.
+   */
+  public static TaxSnapshot open(File file) throws IOException {
+    try (
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      FileChannel channel  = raf.getChannel()
+    ) {
+      // The mapping stays valid after the channel is closed
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new TaxSnapshot(file, buf);
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  // Records
+
+  private int record(int row) {
+    return records + row * RECORD;
+  }
+
+  public String getName(int row) {
+    int at = record(row);
+    return string(buf.getInt(at + 4), buf.getInt(at + 8));
+  }
+
+  public String getCode(int row) {
+    return CompactTax.unpackCode(buf.getShort(record(row)));
+  }
+
+  public String getType(int row) {
+    short type = buf.getShort(record(row) + 2);
+    return (type < 0) ? null : types[type];
+  }
+
+  public double getPst(int row) {
+    return buf.getDouble(record(row) + 12);
+  }
+
+  public double getGst(int row) {
+    return buf.getDouble(record(row) + 20);
+  }
+
+  public TaxBean getBean(int row) {
+    TaxBean bean = new TaxBean();
+    bean.setName(getName(row));
+    bean.setCode(getCode(row));
+    bean.setType(getType(row));
+    bean.setPst(getPst(row));
+    bean.setGst(getGst(row));
+    return bean;
+  }
+
+  private String string(int offset, int length) {
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    ByteBuffer view = buf.duplicate();
+    view.position(strings + offset);
+    view.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Queries
+
+  /**
+   * Returns the record number of the code, or -1 if there is none.
+   */
+  public int find(String code) {
+    short key;
+    try {
+      key = CompactTax.packCode(code);
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
+    int low  = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int mid  = (low + high) >>> 1;
+      int row  = buf.getInt(byCode + mid * 4);
+      int cmp  = Integer.compare(buf.getShort(record(row)) & 0xFFFF, key & 0xFFFF);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return row;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * The records with PST greater than the given number, in table
+   * order, like 'SELECT * FROM Tax WHERE pst > ?'.
+   */
+  public List<TaxBean> pstAbove(double pst) {
+    List<TaxBean> list = new ArrayList<>();
+    for (int row = 0; row < count; row++) {
+      if (getPst(row) > pst) {
+        list.add(getBean(row));
+      }
+    }
+    return list;
+  }
+
+  /**
+   * A page of the records with PST greater than the given number,
+   * in (pst, code) order, starting after the given record when
+   * afterCode is not null. Like the paged 'pst_gt' query.
+   */
+  public List<TaxBean> pstAbove(double pst, double afterPst, String afterCode, int limit) {
+    if (limit <= 0) {
+      limit = Integer.MAX_VALUE;
+    }
+    // The first position in the pst index past the start of the page
+    int low  = 0;
+    int high = count;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      int row = buf.getInt(byPst + mid * 4);
+      if (after(row, pst, afterPst, afterCode)) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    List<TaxBean> list = new ArrayList<>();
+    for (int i = low; i < count && list.size() < limit; i++) {
+      list.add(getBean(buf.getInt(byPst + i * 4)));
+    }
+    return list;
+  }
+
+  private boolean after(int row, double pst, double afterPst, String afterCode) {
+    double value = getPst(row);
+    if (!(value > pst)) {
+      return false;
+    }
+    if (afterCode == null || value > afterPst) {
+      return true;
+    }
+    return value == afterPst && getCode(row).compareTo(afterCode) > 0;
+  }
+
+  /**
+   * The k records with the highest PST, ties by code, like
+   * 'SELECT * FROM Tax ORDER BY pst DESC, code LIMIT k'.
+   */
+  public List<TaxBean> topPst(int k) {
+    List<TaxBean> list = new ArrayList<>();
+    int end = count;
+    while (end > 0 && list.size() < k) {
+      // Records with the same pst are in code order; take the group
+      double pst = getPst(buf.getInt(byPst + (end - 1) * 4));
+      int start  = end - 1;
+      while (start > 0 && getPst(buf.getInt(byPst + (start - 1) * 4)) == pst) {
+        start--;
+      }
+      for (int i = start; i < end && list.size() < k; i++) {
+        list.add(getBean(buf.getInt(byPst + i * 4)));
+      }
+      end = start;
+    }
+    return list;
+  }
+
+  // Writing
+
+  /**
+   * Writes the records to a snapshot file, through a temporary file
+   * in the same directory that replaces it atomically. Codes must be
+   * two 8-bit characters, and unique.
+   */
+  public static void write(List<? extends Tax> taxes, File file) throws IOException {
+    int count = taxes.size();
+
+    // Types and names go in the string area once each
+    Map<String, Integer> typeIds = new HashMap<>();
+    List<String> types = new ArrayList<>();
+    Map<String, int[]> names = new HashMap<>();
+    ByteArrayOutputStream area = new ByteArrayOutputStream();
+
+    short[] codes = new short[count];
+    for (int row = 0; row < count; row++) {
+      Tax tax = taxes.get(row);
+      if (tax.getCode() == null) {
+        throw new IllegalArgumentException("Record " + row + " has no code");
+      }
+      codes[row] = CompactTax.packCode(tax.getCode());
+      if (tax.getType() != null && !typeIds.containsKey(tax.getType())) {
+        typeIds.put(tax.getType(), types.size());
+        types.add(tax.getType());
+      }
+    }
+
+    Integer[] byCode = order(count);
+    Arrays.sort(byCode, Comparator.comparingInt(row -> codes[row] & 0xFFFF));
+    for (int i = 1; i < count; i++) {
+      if (codes[byCode[i]] == codes[byCode[i - 1]]) {
+        throw new IllegalArgumentException("Duplicate code: " + taxes.get(byCode[i]).getCode());
+      }
+    }
+    Integer[] byPst = order(count);
+    Arrays.sort(byPst, Comparator.<Integer>comparingDouble(row -> taxes.get(row).getPst())
+      .thenComparing(row -> taxes.get(row).getCode()));
+
+    int records = HEADER + types.size() * 8;
+    int strings = records + count * RECORD + count * 8;
+    ByteBuffer head = ByteBuffer.allocate(strings);
+
+    head.position(HEADER);
+    for (String type : types) {
+      byte[] bytes = type.getBytes(StandardCharsets.UTF_8);
+      head.putInt(area.size()).putInt(bytes.length);
+      area.write(bytes, 0, bytes.length);
+    }
+    for (int row = 0; row < count; row++) {
+      Tax tax = taxes.get(row);
+      int[] name = new int[] { 0, -1 };
+      if (tax.getName() != null) {
+        name = names.get(tax.getName());
+        if (name == null) {
+          byte[] bytes = tax.getName().getBytes(StandardCharsets.UTF_8);
+          name = new int[] { area.size(), bytes.length };
+          names.put(tax.getName(), name);
+          area.write(bytes, 0, bytes.length);
+        }
+      }
+      head.putShort(codes[row]);
+      head.putShort((short)((tax.getType() == null) ? -1 : typeIds.get(tax.getType())));
+      head.putInt(name[0]).putInt(name[1]);
+      head.putDouble(tax.getPst()).putDouble(tax.getGst());
+      head.putInt(0);
+    }
+    for (int row : byCode) {
+      head.putInt(row);
+    }
+    for (int row : byPst) {
+      head.putInt(row);
+    }
+
+    byte[] body = area.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(head.array(), HEADER, strings - HEADER);
+    crc.update(body);
+
+    head.position(0);
+    head.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(types.size());
+    head.putInt(strings).putInt(body.length).putInt((int)crc.getValue()).putInt(0);
+
+    File dir  = file.getAbsoluteFile().getParentFile();
+    File temp = File.createTempFile(file.getName(), ".tmp", dir);
+    try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+      raf.write(head.array());
+      raf.write(body);
+      raf.getFD().sync();
+    } catch (IOException e) {
+      temp.delete();
+      throw e;
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static Integer[] order(int count) {
+    Integer[] rows = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      rows[i] = i;
+    }
+    return rows;
+  }
+}
@@ -0,0 +1,216 @@
+package model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the Tax records of an XML document one <tax> element at a
+ * time with StAX, without building the collection, so a document
+ * of any size is read in constant memory.
+ *
+ * Accepts a <taxes> document as written by TaxXmlWriter or JAXB,
+ * or a single <tax> document. The 'unknown' and 'next' elements
+ * are available once the records have all been read. Unknown
+ * elements are skipped. DTDs and external entities are not
+ * processed.
+ *
+ * Usage:
+ *
+ *    try (TaxXmlReader reader = new TaxXmlReader(System.in)) {
+ *      TaxBean bean;
+ *      while ((bean = reader.read()) != null) {
+ *        ...
+ *      }
+ *    }
+ *
+ * or reader.forEach(bean -> ...), or as an Iterator.
+ */
+public class TaxXmlReader implements Iterator<TaxBean>, Closeable {
+
+  private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+  static {
+    FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  private final XMLStreamReader xml;
+  private int depth;
+  private boolean done;
+  private TaxBean peeked;
+
+  private List<String> unknown;
+  private String next;
+
+  public TaxXmlReader(InputStream in) throws IOException {
+    try {
+      this.xml = FACTORY.createXMLStreamReader(in);
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Returns the next record, or null after the last one.
+   */
+  public TaxBean read() throws IOException {
+    if (peeked != null) {
+      TaxBean bean = peeked;
+      peeked = null;
+      return bean;
+    }
+    try {
+      // Stops at the end of the root element, so the stream is not
+      // read any further (e.g. standard input up to end of file)
+      while (!done && xml.hasNext()) {
+        int event = xml.next();
+        if (event == XMLStreamConstants.END_ELEMENT) {
+          done = (--depth == 0);
+          continue;
+        } else if (event != XMLStreamConstants.START_ELEMENT) {
+          continue;
+        }
+        String name = xml.getLocalName();
+        if (name.equals("tax")) {
+          done = (depth == 0);
+          return bean();
+        } else if (name.equals("unknown")) {
+          if (unknown == null) {
+            unknown = new ArrayList<>();
+          }
+          unknown.add(xml.getElementText());
+        } else if (name.equals("next")) {
+          next = xml.getElementText();
+        } else {
+          depth++;
+        }
+      }
+      return null;
+    } catch (XMLStreamException | IllegalArgumentException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Reads the fields of the current <tax> element, up to its end.
+   */
+  private TaxBean bean() throws XMLStreamException {
+    TaxBean bean = new TaxBean();
+    while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      String name = xml.getLocalName();
+      if (name.equals("code")) {
+        bean.setCode(xml.getElementText());
+      } else if (name.equals("gst")) {
+        bean.setGst(parseDouble(xml.getElementText()));
+      } else if (name.equals("name")) {
+        bean.setName(xml.getElementText());
+      } else if (name.equals("pst")) {
+        bean.setPst(parseDouble(xml.getElementText()));
+      } else if (name.equals("type")) {
+        bean.setType(xml.getElementText());
+      } else {
+        skip();
+      }
+    }
+    return bean;
+  }
+
+  private void skip() throws XMLStreamException {
+    for (int depth = 1; depth > 0; ) {
+      int event = xml.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  /**
+   * Parses a double the way JAXB does (xsd:double).
+   */
+  static double parseDouble(String text) {
+    text = text.trim();
+    if (text.equals("INF")) {
+      return Double.POSITIVE_INFINITY;
+    } else if (text.equals("-INF")) {
+      return Double.NEGATIVE_INFINITY;
+    }
+    return Double.parseDouble(text);
+  }
+
+  /**
+   * Passes each remaining record to the consumer, and returns
+   * the number of records read.
+   */
+  public long forEach(Consumer<? super TaxBean> consumer) throws IOException {
+    long count = 0;
+    TaxBean bean;
+    while ((bean = read()) != null) {
+      consumer.accept(bean);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * The requested codes that had no record, once all the records
+   * have been read. Null if the document has none.
+   */
+  public List<String> getUnknown() {
+    return unknown;
+  }
+
+  /**
+   * The continuation token of the next page, once all the records
+   * have been read. Null if the document has none.
+   */
+  public String getNext() {
+    return next;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (peeked == null) {
+      try {
+        peeked = read();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return peeked != null;
+  }
+
+  @Override
+  public TaxBean next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    TaxBean bean = peeked;
+    peeked = null;
+    return bean;
+  }
+
+  /**
+   * Closes the reader. The underlying stream is left open.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      xml.close();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+}
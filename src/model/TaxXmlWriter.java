@@ -0,0 +1,186 @@
+package model;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes Tax records as XML one at a time, so a document of any
+ * size is written in constant memory. The counterpart of the StAX
+ * TaxXmlReader.
+ *
+ * The output is the same as JAXB's formatted output for TaxBean and
+ * TaxCollection: the standalone declaration, four-space indentation,
+ * the fields of a record in the order code, gst, name, pst, type
+ * with null strings left out, then the unknown codes and the next
+ * page token. Since the layout is fixed, the elements are written
+ * directly rather than through an XMLStreamWriter, which is slower
+ * than JAXB itself.
+ *
+ * Usage:
+ *
+ *    try (TaxXmlWriter writer = new TaxXmlWriter(out)) {
+ *      for (...) {
+ *        writer.write(bean);
+ *      }
+ *      writer.finish(unknown, next);
+ *    }
+ *
+ * or TaxXmlWriter.write(collection, out) for a whole collection.
+ */
+public class TaxXmlWriter implements Closeable {
+
+  private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+
+  private final Writer out;
+  private boolean started;
+  private boolean finished;
+
+  public TaxXmlWriter(OutputStream out) throws IOException {
+    this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+    this.out.write(HEADER);
+  }
+
+  /**
+   * Writes a whole collection as a <taxes> document.
+   */
+  public static void write(TaxCollection collection, OutputStream out) throws IOException {
+    try (TaxXmlWriter writer = new TaxXmlWriter(out)) {
+      if (collection.getTaxes() != null) {
+        for (TaxBean bean : collection.getTaxes()) {
+          writer.write(bean);
+        }
+      }
+      writer.finish(collection.getUnknown(), collection.getNext());
+    }
+  }
+
+  /**
+   * Writes a single record as a <tax> document.
+   */
+  public static void write(Tax bean, OutputStream out) throws IOException {
+    try (TaxXmlWriter writer = new TaxXmlWriter(out)) {
+      writer.finished = true;
+      writer.out.write("<tax>");
+      writer.fields(bean, "\n    ");
+      writer.out.write("\n</tax>\n");
+    }
+  }
+
+  /**
+   * Writes the next record of the collection.
+   */
+  public void write(Tax bean) throws IOException {
+    start();
+    out.write("\n    <tax>");
+    fields(bean, "\n        ");
+    out.write("\n    </tax>");
+  }
+
+  /**
+   * Writes the unknown codes and the next page token, if not null,
+   * and ends the collection. No more records can be written.
+   */
+  public void finish(List<String> unknown, String next) throws IOException {
+    if (finished) {
+      return;
+    }
+    if (unknown != null) {
+      for (String code : unknown) {
+        start();
+        element("\n    ", "unknown", code);
+      }
+    }
+    if (next != null) {
+      start();
+      element("\n    ", "next", next);
+    }
+    out.write(started ? "\n</taxes>\n" : "<taxes/>\n");
+    finished = true;
+  }
+
+  private void start() throws IOException {
+    if (finished) {
+      throw new IllegalStateException("Collection already finished");
+    }
+    if (!started) {
+      out.write("<taxes>");
+      started = true;
+    }
+  }
+
+  private void fields(Tax bean, String indent) throws IOException {
+    element(indent, "code", bean.getCode());
+    element(indent, "gst",  printDouble(bean.getGst()));
+    element(indent, "name", bean.getName());
+    element(indent, "pst",  printDouble(bean.getPst()));
+    element(indent, "type", bean.getType());
+  }
+
+  private void element(String indent, String name, String value) throws IOException {
+    if (value == null) {
+      return;
+    }
+    out.write(indent);
+    out.write('<');
+    out.write(name);
+    out.write('>');
+    escape(value);
+    out.write("</");
+    out.write(name);
+    out.write('>');
+  }
+
+  /**
+   * Writes character data, escaping the same characters as JAXB.
+   */
+  private void escape(String value) throws IOException {
+    int start = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      String entity;
+      if (c == '&') {
+        entity = "&amp;";
+      } else if (c == '<') {
+        entity = "&lt;";
+      } else if (c == '>') {
+        entity = "&gt;";
+      } else {
+        continue;
+      }
+      out.write(value, start, i - start);
+      out.write(entity);
+      start = i + 1;
+    }
+    out.write(value, start, value.length() - start);
+  }
+
+  /**
+   * Formats a double the way JAXB does (xsd:double).
+   */
+  static String printDouble(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    } else if (value == Double.POSITIVE_INFINITY) {
+      return "INF";
+    } else if (value == Double.NEGATIVE_INFINITY) {
+      return "-INF";
+    }
+    return Double.toString(value);
+  }
+
+  /**
+   * Ends the collection if it has not been, and flushes the output.
+   * The underlying stream is left open.
+   */
+  @Override
+  public void close() throws IOException {
+    finish(null, null);
+    out.flush();
+  }
+}
@@ -0,0 +1,255 @@
+package services;
+
+import java.io.PrintStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A pool of direct ByteBuffers in a few size classes, for socket I/O.
+ *
+ * Reading from or writing to a channel with a heap buffer makes the
+ * JDK copy it through a temporary direct buffer; a direct buffer is
+ * used as it is. Direct buffers are slow to allocate and only freed
+ * by the garbage collector, so they are leased and returned instead:
+ * a connection acquires its buffers when it opens and releases them
+ * when it closes, and under steady traffic no buffer is allocated.
+ *
+ * Buffers are carved from slabs: when a class has no free buffer, one
+ * direct allocation of SLAB bytes (1 MB, or the class size if larger)
+ * is sliced into buffers of the class. Slabs are never freed, so the
+ * pool grows to the most buffers in use at once, and stays there. The
+ * free buffers of a class are a stack, the most recently released on
+ * top as it is likely in cache, in an array: releasing a buffer does
+ * not allocate either. acquire(n) returns a buffer of the smallest
+ * class of at least n bytes; past the largest class, an unpooled one.
+ *
+ * Debug mode (BUFFER_DEBUG=true) tracks each lease. A buffer released
+ * twice, or not from the pool, is an IllegalStateException. A buffer
+ * that becomes unreachable without being released is a leak: it is
+ * logged with where it was acquired, and its memory returns to the
+ * pool. Debug mode hands out a duplicate of the pooled buffer for each
+ * lease, so it allocates; it is for finding leaks, not for production.
+ *
+ * SHARED is the pool of the services, with classes of 4, 16 and 64 KB.
+ */
+public class BufferPool {
+  private static PrintStream log = System.out;
+
+  public static final int SLAB = 1 << 20;
+
+  public static final BufferPool SHARED =
+    new BufferPool(Config.get("BUFFER_DEBUG", "false").equals("true"), 1 << 12, 1 << 14, 1 << 16);
+
+  private final SizeClass[] classes;
+  private final boolean debug;
+  private final AtomicLong oversized = new AtomicLong();
+
+  // Debug mode: the leases not released yet, and the ones collected
+  private final Map<Lease, Lease> leases = new ConcurrentHashMap<>();
+  private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+  private final AtomicLong leaks = new AtomicLong();
+
+  private static final class SizeClass {
+    final int size;
+    ByteBuffer[] free = new ByteBuffer[0];
+    int pooled;
+    int slabs;
+    int total;
+
+    final AtomicLong acquired = new AtomicLong();
+    final AtomicLong hits     = new AtomicLong();
+
+    SizeClass(int size) {
+      this.size = size;
+    }
+
+    synchronized ByteBuffer pop() {
+      return (pooled == 0) ? null : free[--pooled];
+    }
+
+    synchronized void push(ByteBuffer buffer) {
+      if (pooled == free.length) {
+        throw new IllegalStateException("Released twice: more buffers than carved");
+      }
+      free[pooled++] = buffer;
+    }
+
+    // Slices a new slab, and returns one of its buffers
+    synchronized ByteBuffer carve() {
+      ByteBuffer slab = ByteBuffer.allocateDirect(Math.max(SLAB, size));
+      int count = slab.capacity() / size;
+      slabs++;
+      total += count;
+      ByteBuffer[] grown = new ByteBuffer[total];
+      System.arraycopy(free, 0, grown, 0, pooled);
+      free = grown;
+      for (int i = count - 1; i >= 0; i--) {
+        slab.limit((i + 1) * size).position(i * size);
+        free[pooled++] = slab.slice();
+      }
+      return free[--pooled];
+    }
+
+    synchronized String stats() {
+      long acquired = this.acquired.get();
+      return String.format("%dK: slabs=%d buffers=%d pooled=%d leased=%d acquired=%d hits=%.1f%%",
+        size >> 10, slabs, total, pooled, total - pooled, acquired,
+        (acquired == 0) ? 100.0 : hits.get() * 100.0 / acquired);
+    }
+  }
+
+  /**
+   * A buffer handed out in debug mode. Equal to another lease of the
+   * same buffer, to find it on release; once its buffer is collected,
+   * only equal to itself.
+   */
+  private static final class Lease extends WeakReference<ByteBuffer> {
+    final int hash;
+    final ByteBuffer pooled;
+    final SizeClass sizeClass;
+    final Throwable acquiredAt;
+
+    Lease(ByteBuffer buffer, ByteBuffer pooled, SizeClass sizeClass, ReferenceQueue<ByteBuffer> queue) {
+      super(buffer, queue);
+      this.hash       = System.identityHashCode(buffer);
+      this.pooled     = pooled;
+      this.sizeClass  = sizeClass;
+      this.acquiredAt = (queue == null) ? null : new Throwable("Acquired here");
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+      ByteBuffer buffer = get();
+      return buffer != null && o instanceof Lease && ((Lease)o).get() == buffer;
+    }
+  }
+
+  /**
+   * @param sizes  of the classes, in increasing order
+   */
+  public BufferPool(boolean debug, int... sizes) {
+    this.debug   = debug;
+    this.classes = new SizeClass[sizes.length];
+    for (int i = 0; i < sizes.length; i++) {
+      if (i > 0 && sizes[i] <= sizes[i - 1]) {
+        throw new IllegalArgumentException("Sizes must increase: " + sizes[i]);
+      }
+      classes[i] = new SizeClass(sizes[i]);
+    }
+  }
+
+  private SizeClass classOf(int size) {
+    for (SizeClass sizeClass : classes) {
+      if (sizeClass.size >= size) {
+        return sizeClass;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A cleared buffer of at least 'size' bytes, to be released when done.
+   */
+  public ByteBuffer acquire(int size) {
+    SizeClass sizeClass = classOf(size);
+    if (sizeClass == null) {
+      oversized.incrementAndGet();
+      return ByteBuffer.allocateDirect(size);
+    }
+    if (debug) {
+      reclaim();
+    }
+
+    sizeClass.acquired.incrementAndGet();
+    ByteBuffer buffer = sizeClass.pop();
+    if (buffer == null) {
+      buffer = sizeClass.carve();
+    } else {
+      sizeClass.hits.incrementAndGet();
+    }
+    buffer.clear();
+
+    if (debug) {
+      ByteBuffer leased = buffer.duplicate();
+      Lease lease = new Lease(leased, buffer, sizeClass, collected);
+      leases.put(lease, lease);
+      return leased;
+    }
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer from acquire() to the pool. It must not be
+   * used afterwards.
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer.capacity() > classes[classes.length - 1].size && buffer.isDirect()) {
+      return; // Oversized, not pooled
+    }
+    if (debug) {
+      Lease lease = leases.remove(new Lease(buffer, null, null, null));
+      if (lease == null) {
+        throw new IllegalStateException("Released twice, or not from this pool");
+      }
+      lease.clear();
+      lease.sizeClass.push(lease.pooled);
+      reclaim();
+      return;
+    }
+    SizeClass sizeClass = classOf(buffer.capacity());
+    if (sizeClass == null || sizeClass.size != buffer.capacity() || !buffer.isDirect()) {
+      throw new IllegalArgumentException("Not a buffer of this pool");
+    }
+    sizeClass.push(buffer);
+  }
+
+  // Debug mode: returns the buffers leaked, i.e. collected unreleased
+  private void reclaim() {
+    Lease lease;
+    while ((lease = (Lease)collected.poll()) != null) {
+      if (leases.remove(lease) != null) {
+        leaks.incrementAndGet();
+        log.printf("Buffer leak: %d bytes not released\n", lease.sizeClass.size);
+        lease.acquiredAt.printStackTrace(log);
+        lease.sizeClass.push(lease.pooled);
+      }
+    }
+  }
+
+  /**
+   * The largest buffer acquire() returns from the pool.
+   */
+  public int getMaxSize() {
+    return classes[classes.length - 1].size;
+  }
+
+  /**
+   * Per class, the slabs and buffers, how many are leased, and the
+   * share of acquire() answered without allocating (hits).
+   */
+  public String stats() {
+    if (debug) {
+      reclaim();
+    }
+    StringBuilder stats = new StringBuilder();
+    for (SizeClass sizeClass : classes) {
+      stats.append(sizeClass.stats()).append("; ");
+    }
+    stats.append("oversized=").append(oversized.get());
+    if (debug) {
+      stats.append(" leaks=").append(leaks.get());
+    }
+    return stats.toString();
+  }
+}
@@ -0,0 +1,84 @@
+package services;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Stops calling a failing dependency for a while, so callers fail
+ * fast instead of each waiting for a timeout.
+ *
+ *  - closed     Calls are allowed. After the given number of
+ *               consecutive failures, the breaker opens.
+ *  - open       Calls are refused until the open time has passed,
+ *               then a single trial call is allowed (half-open).
+ *  - half-open  If the trial succeeds the breaker closes; if it
+ *               fails the breaker opens again.
+ *
+ * Callers ask allow() before each call, and report its outcome
+ * with success() or failure().
+ */
+public class CircuitBreaker {
+
+  public static final String CLOSED    = "closed";
+  public static final String OPEN      = "open";
+  public static final String HALF_OPEN = "half-open";
+
+  private final int threshold;
+  private final long openNanos;
+
+  private String state = CLOSED;
+  private int failures;
+  private long openedAt;
+  private long rejected;
+  private long opened;
+
+  /**
+   * @param threshold  consecutive failures that open the breaker
+   * @param openMillis how long it stays open before a trial call
+   */
+  public CircuitBreaker(int threshold, long openMillis) {
+    this.threshold = Math.max(threshold, 1);
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+  }
+
+  /**
+   * Whether a call may be made now. When the open time has passed,
+   * lets one caller through as the trial call.
+   */
+  public synchronized boolean allow() {
+    if (state == OPEN && System.nanoTime() - openedAt >= openNanos) {
+      state = HALF_OPEN;
+      return true;
+    }
+    if (state == CLOSED) {
+      return true;
+    }
+    rejected++;
+    return false;
+  }
+
+  /**
+   * Whether calls are being refused, without counting as a call.
+   */
+  public synchronized boolean isOpen() {
+    return state == OPEN && System.nanoTime() - openedAt < openNanos;
+  }
+
+  public synchronized void success() {
+    state    = CLOSED;
+    failures = 0;
+  }
+
+  public synchronized void failure() {
+    failures++;
+    if (state == HALF_OPEN || (state == CLOSED && failures >= threshold)) {
+      state    = OPEN;
+      openedAt = System.nanoTime();
+      opened++;
+    }
+  }
+
+  public synchronized String state()  { return state; }
+  public synchronized long rejected() { return rejected; }
+  public synchronized long opened()   { return opened; }
+}
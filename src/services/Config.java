@@ -0,0 +1,27 @@
+package services;
+
+
+/**
+ * Reads the services' settings from environment variables,
+ * the same way ExchangeRateService reads its APIKEY, falling
+ * back to the given default when a variable is not set.
+ */
+public class Config {
+
+  private Config() { }
+
+  public static String get(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return (value == null || value.isEmpty()) ? defaultValue : value;
+  }
+
+  public static int getInt(String name, int defaultValue) {
+    String value = System.getenv(name);
+    return (value == null || value.isEmpty()) ? defaultValue : Integer.parseInt(value.trim());
+  }
+
+  public static long getLong(String name, long defaultValue) {
+    String value = System.getenv(name);
+    return (value == null || value.isEmpty()) ? defaultValue : Long.parseLong(value.trim());
+  }
+}
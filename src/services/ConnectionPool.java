@@ -0,0 +1,161 @@
+package services;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A fixed-size pool of JDBC connections to one database URL.
+ *
+ * getConnection() hands out a connection whose close() returns it
+ * to the pool instead of closing it, so it can be used in a
+ * try-with-resources statement like any other connection. At most
+ * 'size' connections are open at once; callers wait for one to be
+ * returned when all are in use, for at most 'timeout' milliseconds,
+ * and then get an SQLException. A connection that has been idle for
+ * a while is checked with isValid() before being handed out again.
+ */
+public class ConnectionPool {
+
+  private static final long VALIDATE_AFTER = TimeUnit.SECONDS.toNanos(30);
+
+  private final String url;
+  private final Semaphore permits;
+  private final BlockingQueue<Pooled> idle;
+  private final long timeout;
+
+  public ConnectionPool(String url, int size, long timeout) {
+    this.url     = url;
+    this.permits = new Semaphore(size, true);
+    this.idle    = new ArrayBlockingQueue<>(size);
+    this.timeout = timeout;
+  }
+
+  public Connection getConnection() throws SQLException {
+    try {
+      if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+        throw new SQLException("Timed out after " + timeout + " ms waiting for a connection");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a connection", e);
+    }
+
+    try {
+      Pooled pooled;
+      while ((pooled = idle.poll()) != null) {
+        if (System.nanoTime() - pooled.lastUsed < VALIDATE_AFTER || pooled.connection.isValid(1)) {
+          break;
+        }
+        close(pooled.connection);
+      }
+      if (pooled == null) {
+        pooled = new Pooled(DriverManager.getConnection(url));
+      }
+      return (Connection)Proxy.newProxyInstance(
+        Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new Lease(pooled));
+    } catch (SQLException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Closes the idle connections. Connections in use are closed
+   * when they are returned.
+   */
+  public void close() {
+    Pooled pooled;
+    while ((pooled = idle.poll()) != null) {
+      close(pooled.connection);
+    }
+  }
+
+  private void release(Pooled pooled) {
+    try {
+      if (!pooled.connection.isClosed() && !pooled.connection.getAutoCommit()) {
+        pooled.connection.rollback();
+        pooled.connection.setAutoCommit(true);
+      }
+      if (pooled.connection.isClosed()) {
+        return;
+      }
+      pooled.lastUsed = System.nanoTime();
+      if (!idle.offer(pooled)) {
+        close(pooled.connection);
+      }
+    } catch (SQLException e) {
+      close(pooled.connection);
+    } finally {
+      permits.release();
+    }
+  }
+
+  private static void close(Connection connection) {
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      // Already broken, nothing else to do
+    }
+  }
+
+  private static class Pooled {
+    private final Connection connection;
+    private volatile long lastUsed = System.nanoTime();
+
+    Pooled(Connection connection) {
+      this.connection = connection;
+    }
+  }
+
+  /**
+   * One borrowing of a pooled connection. Once closed, the lease
+   * acts as a closed connection, even after the pooled one has been
+   * borrowed again: a stale close() does not return it a second time.
+   */
+  private class Lease implements InvocationHandler {
+    private final Pooled pooled;
+    private volatile boolean released;
+
+    Lease(Pooled pooled) {
+      this.pooled = pooled;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("close")) {
+        synchronized (this) {
+          if (!released) {
+            released = true;
+            release(pooled);
+          }
+        }
+        return null;
+      } else if (name.equals("isClosed")) {
+        return released || pooled.connection.isClosed();
+      } else if (name.equals("equals")) {
+        return proxy == args[0];
+      } else if (name.equals("hashCode")) {
+        return System.identityHashCode(proxy);
+      } else if (name.equals("toString")) {
+        return "Pooled " + pooled.connection + (released ? " (closed)" : "");
+      } else if (released) {
+        throw new SQLException("Connection is closed");
+      }
+      try {
+        return method.invoke(pooled.connection, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+}
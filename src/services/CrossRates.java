@@ -0,0 +1,124 @@
+package services;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * The exchange rate between every pair of currencies of one set of
+ * rates, precomputed in a dense matrix: converting an amount is one
+ * array lookup and a multiply.
+ *
+ * Currencies are numbered in alphabetical order. Their three-letter
+ * codes are mapped to these ids through an array indexed by the code
+ * itself (26^3 entries), so looking up a currency does not hash or
+ * compare strings either.
+ *
+ * Instances are immutable. A new matrix is built for each new set of
+ * rates (see ExchangeRates), and swapped in along with them.
+ */
+public final class CrossRates {
+
+  public static final int NONE = -1;
+
+  static final int CODES = 26 * 26 * 26;
+
+  private final String[] currencies;
+  private final int[] ids;
+  private final double[][] matrix;
+
+  /**
+   * @param base   the currency the rates are relative to
+   * @param rates  the price of one unit of the base in each currency;
+   *               rates that are not positive numbers are left out
+   */
+  public CrossRates(String base, Map<String, Double> rates) {
+    Map<String, Double> sorted = new TreeMap<>();
+    for (Map.Entry<String, Double> rate : rates.entrySet()) {
+      double value = rate.getValue();
+      if (code(rate.getKey()) != NONE && value > 0 && !Double.isInfinite(value)) {
+        sorted.put(rate.getKey(), value);
+      }
+    }
+    if (code(base) != NONE) {
+      sorted.putIfAbsent(base, 1.0);
+    }
+
+    int count  = sorted.size();
+    currencies = sorted.keySet().toArray(new String[count]);
+    ids        = new int[CODES];
+    Arrays.fill(ids, NONE);
+
+    double[] rate = new double[count];
+    for (int id = 0; id < count; id++) {
+      ids[code(currencies[id])] = id;
+      rate[id] = sorted.get(currencies[id]);
+    }
+
+    // One unit of 'from' is 1 / rate[from] of the base, which is
+    // rate[to] / rate[from] units of 'to'
+    matrix = new double[count][count];
+    for (int from = 0; from < count; from++) {
+      for (int to = 0; to < count; to++) {
+        matrix[from][to] = (from == to) ? 1.0 : rate[to] / rate[from];
+      }
+    }
+  }
+
+  /**
+   * The index of a three-letter upper-case code, e.g. "CAD",
+   * or NONE if it is not one.
+   */
+  static int code(String currency) {
+    if (currency == null || currency.length() != 3) {
+      return NONE;
+    }
+    int code = 0;
+    for (int i = 0; i < 3; i++) {
+      char c = currency.charAt(i);
+      if (c < 'A' || c > 'Z') {
+        return NONE;
+      }
+      code = code * 26 + (c - 'A');
+    }
+    return code;
+  }
+
+  /**
+   * The id of the currency, or NONE if there is no rate for it.
+   */
+  public int id(String currency) {
+    int code = code(currency);
+    return (code == NONE) ? NONE : ids[code];
+  }
+
+  public String currency(int id) {
+    return currencies[id];
+  }
+
+  public int size() {
+    return currencies.length;
+  }
+
+  /**
+   * The number of units of 'to' for one unit of 'from'.
+   */
+  public double rate(int from, int to) {
+    return matrix[from][to];
+  }
+
+  public double convert(double amount, int from, int to) {
+    return amount * matrix[from][to];
+  }
+
+  /**
+   * Converts all the amounts between the same currencies, in place.
+   */
+  public void convert(double[] amounts, int from, int to) {
+    double rate = matrix[from][to];
+    for (int i = 0; i < amounts.length; i++) {
+      amounts[i] *= rate;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package services;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A UDP endpoint for tiny request/response services: each datagram
+ * received is a request, answered with one datagram back to its
+ * sender. There is no connection to set up or tear down, so a
+ * request costs one round trip.
+ *
+ * Datagrams are handled in batches: once the channel is readable,
+ * up to BATCH datagrams are received without blocking, then all are
+ * answered, then all replies are sent. The buffers are allocated
+ * once and reused.
+ *
+ * UDP does not retry: a request or reply may be lost, and the client
+ * has to time out and send the request again. A reply that cannot
+ * be sent at once (the socket's send buffer is full) is dropped, and
+ * counted in stats().
+ */
+public class DatagramEndpoint extends Thread {
+  private static PrintStream log = System.out;
+
+  /**
+   * Answers a request from 'sender', read from 'request' into
+   * 'response'. Both are positioned for it: the handler reads the
+   * request and puts the response, without flipping either. No
+   * reply is sent if it puts nothing.
+   */
+  public interface Handler {
+    void handle(ByteBuffer request, ByteBuffer response, SocketAddress sender);
+  }
+
+  public static final int MAX_SIZE = 65507; // Largest UDP payload over IPv4
+  public static final int BATCH    = 32;
+
+  private final DatagramChannel channel;
+  private final Handler handler;
+
+  private final ByteBuffer[] requests   = new ByteBuffer[BATCH];
+  private final ByteBuffer[] responses  = new ByteBuffer[BATCH];
+  private final SocketAddress[] senders = new SocketAddress[BATCH];
+
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong sent     = new AtomicLong();
+  private final AtomicLong dropped  = new AtomicLong();
+  private final AtomicLong batches  = new AtomicLong();
+
+  public DatagramEndpoint(DatagramChannel channel, Handler handler) {
+    super("datagram-endpoint");
+    this.channel = channel;
+    this.handler = handler;
+    for (int i = 0; i < BATCH; i++) {
+      requests[i]  = ByteBuffer.allocate(MAX_SIZE);
+      responses[i] = ByteBuffer.allocate(MAX_SIZE);
+    }
+    setDaemon(true);
+  }
+
+  /**
+   * Receives up to BATCH datagrams that are already waiting.
+   */
+  private int receive() throws IOException {
+    int count = 0;
+    while (count < BATCH) {
+      requests[count].clear();
+      SocketAddress sender = channel.receive(requests[count]);
+      if (sender == null) {
+        break;
+      }
+      senders[count++] = sender;
+    }
+    return count;
+  }
+
+  public void run() {
+    try (Selector selector = Selector.open()) {
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_READ);
+
+      while (channel.isOpen()) {
+        selector.select();
+        selector.selectedKeys().clear();
+
+        int count;
+        do {
+          count = receive();
+          for (int i = 0; i < count; i++) {
+            requests[i].flip();
+            responses[i].clear();
+            try {
+              handler.handle(requests[i], responses[i], senders[i]);
+            } catch (RuntimeException e) {
+              log.println(e);
+              responses[i].clear();
+            }
+            responses[i].flip();
+          }
+          for (int i = 0; i < count; i++) {
+            if (!responses[i].hasRemaining()) {
+              // No reply
+            } else if (channel.send(responses[i], senders[i]) > 0) {
+              sent.incrementAndGet();
+            } else {
+              dropped.incrementAndGet();
+            }
+            senders[i] = null;
+          }
+          if (count > 0) {
+            received.addAndGet(count);
+            batches.incrementAndGet();
+          }
+        } while (count == BATCH); // More may be waiting
+      }
+    } catch (IOException e) {
+      log.println(e);
+    }
+  }
+
+  public String stats() {
+    long batches  = this.batches.get();
+    long received = this.received.get();
+    return String.format("received=%d sent=%d dropped=%d batches=%d datagrams/batch=%.1f",
+      received, sent.get(), dropped.get(), batches,
+      (batches == 0) ? 0.0 : (double)received / batches);
+  }
+}
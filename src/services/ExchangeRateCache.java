@@ -0,0 +1,277 @@
+package services;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Caches the latest exchange rates of a fixer.io style API
+ * ({"base":"EUR","rates":{"CAD":1.47,...}}), so that requests read
+ * the rates from memory instead of calling the API each time.
+ *
+ * Rates are fresh for a time-to-live (TTL). Once started, a background
+ * thread fetches new rates when the current ones are three quarters
+ * through their TTL, so they are replaced before they expire and
+ * requests do not wait for the API.
+ *
+ * When the API is slow or down (see ExchangeRateUpstream for its
+ * timeouts and circuit breaker):
+ *
+ *  - Expired rates are still served, for up to a maximum staleness,
+ *    while a new fetch runs in the background (stale-while-revalidate).
+ *  - Concurrent fetches are merged into one (SingleFlight), so however
+ *    many requests find the rates expired, the API is called once.
+ *  - Only when there are no rates, or they are older than the maximum
+ *    staleness, does a request wait for the fetch, and never longer
+ *    than the upstream's deadline.
+ *
+ * With a RateHistory, the rates of each refresh are also stored as
+ * the rates of their day, and history() fetches a past day that
+ * is not stored yet, once, from the API's historical endpoint. When
+ * the refreshes keep only some currencies (EXCHANGE_CURRENCIES), the
+ * day is fetched in full from that endpoint instead. A failure to
+ * store a day is logged; it does not fail the refresh.
+ *
+ * The TTL is read from EXCHANGE_TTL, in seconds (default 3600,
+ * fixer.io's update interval on the free plan), and the maximum
+ * staleness from EXCHANGE_MAX_STALE, in seconds past the TTL
+ * (default 86400). See ExchangeRateStub for an API to test with offline.
+ */
+public class ExchangeRateCache {
+  private static PrintStream log = System.out;
+
+  private final ExchangeRateUpstream upstream;
+  private final long ttl;
+  private final long maxStale;
+
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "exchange-rate-refresh");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final SingleFlight<String, ExchangeRates> flights = new SingleFlight<>(timer);
+
+  // Past days missing from the history are fetched off the refresh thread
+  private final SingleFlight<LocalDate, ExchangeRates> backfills = new SingleFlight<>(
+    Executors.newFixedThreadPool(2, r -> {
+      Thread thread = new Thread(r, "exchange-rate-history");
+      thread.setDaemon(true);
+      return thread;
+    }));
+  private volatile RateHistory history;
+
+  private volatile ExchangeRates current;
+
+  private final AtomicLong hits   = new AtomicLong();
+  private final AtomicLong stale  = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  /**
+   * @param upstream  the API to fetch the latest rates from
+   * @param ttl       how long fetched rates are fresh, in milliseconds
+   * @param maxStale  how long past the TTL they may still be served
+   *                  while the API cannot be reached, in milliseconds
+   */
+  public ExchangeRateCache(ExchangeRateUpstream upstream, long ttl, long maxStale) {
+    if (ttl <= 0) {
+      throw new IllegalArgumentException("Expected a positive TTL, got: " + ttl);
+    }
+    this.upstream = upstream;
+    this.ttl      = ttl;
+    this.maxStale = Math.max(maxStale, 0);
+  }
+
+  /**
+   * Creates the cache from the EXCHANGE_* environment variables.
+   */
+  public static ExchangeRateCache fromConfig() throws IOException {
+    long ttl      = Config.getLong("EXCHANGE_TTL", 3600);
+    long maxStale = Config.getLong("EXCHANGE_MAX_STALE", 86400);
+
+    ExchangeRateUpstream upstream = ExchangeRateUpstream.fromConfig();
+    ExchangeRateCache cache = new ExchangeRateCache(upstream,
+      TimeUnit.SECONDS.toMillis(ttl), TimeUnit.SECONDS.toMillis(maxStale));
+    log.printf("Exchange rates cached for %d s (stale for up to %d s more) from %s\n",
+      ttl, maxStale, upstream.getURL().toString().replaceAll("access_key=[^&]*", "access_key=..."));
+    return cache;
+  }
+
+  /**
+   * Starts refreshing the rates in the background, before they expire.
+   */
+  public void start() {
+    long period = Math.max(ttl / 4, 1);
+    timer.scheduleWithFixedDelay(() -> {
+      ExchangeRates rates = current;
+      if (rates == null || rates.age() >= ttl - period) {
+        refresh();
+      }
+    }, 0, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * The base currency the rates are relative to, e.g. EUR.
+   */
+  public String base() throws IOException {
+    return rates().getBase();
+  }
+
+  /**
+   * The rate of the currency, i.e. its price of one unit of the
+   * base currency.
+   */
+  public double rate(String currency) throws IOException {
+    Double rate = rates().get(currency);
+    if (rate == null) {
+      throw new IOException("No exchange rate for: " + currency);
+    }
+    return rate;
+  }
+
+  /**
+   * All current rates, by currency.
+   */
+  public Map<String, Double> getRates() throws IOException {
+    return rates().getRates();
+  }
+
+  /**
+   * The cross rates between all current rates.
+   */
+  public CrossRates crossRates() throws IOException {
+    return rates().getCrossRates();
+  }
+
+  /**
+   * The current rates, fetching them if there are none that
+   * may be served.
+   */
+  public ExchangeRates rates() throws IOException {
+    ExchangeRates rates = current;
+    if (rates != null && rates.age() < ttl) {
+      hits.incrementAndGet();
+      return rates;
+    }
+    if (rates != null && rates.age() < ttl + maxStale) {
+      // While the API is known to be down, the timer retries it
+      stale.incrementAndGet();
+      if (upstream.isAvailable()) {
+        refresh();
+      }
+      return rates;
+    }
+    misses.incrementAndGet();
+    return await(refresh());
+  }
+
+  /**
+   * Keeps the rates of each day in the history from now on.
+   */
+  public void setHistory(RateHistory history) {
+    this.history = history;
+  }
+
+  /**
+   * The history, with the rates of the day stored, fetching them
+   * from the API if they were not.
+   */
+  public RateHistory history(LocalDate date) throws IOException {
+    RateHistory history = this.history;
+    if (history == null) {
+      throw new IOException("No rate history");
+    }
+    if (history.has(date)) {
+      return history;
+    }
+    if (date.isBefore(history.getStart()) || date.isAfter(LocalDate.now())) {
+      throw new IOException("No exchange rates for " + date);
+    }
+    await(backfill(history, date));
+    return history;
+  }
+
+  // Fetches the rates of all currencies on the day into the history
+  private CompletableFuture<ExchangeRates> backfill(RateHistory history, LocalDate date) {
+    return backfills.submit(date, () -> {
+      ExchangeRates rates = upstream.fetch(date);
+      history.append(date, rates);
+      return rates;
+    });
+  }
+
+  // Stores the rates of a refresh as those of their day
+  private void store(RateHistory history, ExchangeRates rates) {
+    LocalDate date = rates.getDate();
+    if (date == null || date.isBefore(history.getStart()) || history.has(date)) {
+      return;
+    }
+    if (upstream.isFiltered()) {
+      backfill(history, date).whenComplete((stored, e) -> {
+        if (e != null) {
+          log.println("Exchange rate history append failed: " + e.getMessage());
+        }
+      });
+      return;
+    }
+    try {
+      history.append(date, rates);
+    } catch (IOException | RuntimeException e) {
+      log.println("Exchange rate history append failed: " + e.getMessage());
+    }
+  }
+
+  private ExchangeRates await(CompletableFuture<ExchangeRates> fetch) throws IOException {
+    try {
+      return fetch.get(upstream.deadline(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new IOException("Timed out waiting for exchange rates");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for exchange rates", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw (cause instanceof IOException) ? (IOException)cause : new IOException(cause.toString(), cause);
+    }
+  }
+
+  /**
+   * Fetches new rates, or joins the fetch already running.
+   */
+  private CompletableFuture<ExchangeRates> refresh() {
+    return flights.submit("latest", () -> {
+      try {
+        ExchangeRates rates = upstream.fetch();
+        current = rates;
+
+        RateHistory history = this.history;
+        if (history != null) {
+          store(history, rates);
+        }
+        return rates;
+      } catch (IOException e) {
+        errors.incrementAndGet();
+        log.println("Exchange rate refresh failed: " + e.getMessage());
+        throw e;
+      }
+    });
+  }
+
+  public String stats() {
+    ExchangeRates rates = current;
+    return String.format("hits=%d stale=%d misses=%d fetches=%d errors=%d coalesced=%.1f%% age=%s %s",
+      hits.get(), stale.get(), misses.get(), flights.executions(), errors.get(),
+      flights.coalescingRatio() * 100,
+      (rates == null) ? "-" : (rates.age() / 1000) + "s",
+      upstream.stats());
+  }
+}
@@ -0,0 +1,112 @@
+package services;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+
+/**
+ * Reads a fixer.io style API response token by token, keeping only
+ * the base currency and the rates of the wanted currencies:
+ *
+ *    {"success":true,"base":"EUR","date":"2026-10-19","rates":{"CAD":1.47,...}}
+ *
+ * Unlike parsing the response into a JsonObject first, no tree is
+ * built: the other fields, and the rates of the other currencies,
+ * are skipped without being converted to numbers or stored.
+ */
+public class ExchangeRateReader {
+
+  private final Set<String> currencies;
+
+  /**
+   * Reads the rates of all currencies.
+   */
+  public ExchangeRateReader() {
+    this(Collections.<String>emptySet());
+  }
+
+  /**
+   * Reads the rates of the given currencies only, or of all
+   * currencies if there are none.
+   */
+  public ExchangeRateReader(Set<String> currencies) {
+    this.currencies = new HashSet<>(currencies);
+  }
+
+  public Set<String> getCurrencies() {
+    return Collections.unmodifiableSet(currencies);
+  }
+
+  public ExchangeRates read(Reader reader) throws IOException {
+    JsonReader in = new JsonReader(reader);
+    String base = "EUR";
+    LocalDate date = null;
+    Map<String, Double> rates = null;
+    boolean success = true;
+
+    try {
+      in.beginObject();
+      while (in.hasNext()) {
+        switch (in.nextName()) {
+          case "success":
+            if (in.peek() == JsonToken.BOOLEAN) {
+              success = in.nextBoolean();
+            } else {
+              in.skipValue();
+            }
+            break;
+          case "error":
+            // Only the error details are read into a tree
+            throw new IOException("Exchange rate API error: " + new JsonParser().parse(in));
+          case "base":
+            base = in.nextString();
+            break;
+          case "date":
+            try {
+              date = LocalDate.parse(in.nextString());
+            } catch (DateTimeParseException e) {
+              date = null; // Only informative
+            }
+            break;
+          case "rates":
+            rates = new HashMap<>();
+            in.beginObject();
+            while (in.hasNext()) {
+              String currency = in.nextName();
+              if (currencies.isEmpty() || currencies.contains(currency)) {
+                rates.put(currency, in.nextDouble());
+              } else {
+                in.skipValue();
+              }
+            }
+            in.endObject();
+            break;
+          default:
+            in.skipValue();
+        }
+      }
+      in.endObject();
+    } catch (RuntimeException e) {
+      throw new IOException("Unreadable exchange rate API response: " + e.getMessage(), e);
+    }
+
+    if (!success) {
+      throw new IOException("Exchange rate API error");
+    }
+    if (rates == null) {
+      throw new IOException("Exchange rate API response has no rates");
+    }
+    return new ExchangeRates(base, date, rates);
+  }
+}
@@ -1,35 +1,216 @@
 package services;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.Scanner;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-
 
 /**
  * A simple TCP service that converts Euros (EUR) to Canadian dollars (CAD).
  * Takes a positive integer via a TCP request and responses with the
  * decimal amount in Canadian dollars.
  *
+ * It also converts between any two currencies of the API, one or
+ * many amounts at a time, with one line in the response for each
+ * conversion:
+ *
+ *  - <amount> <FROM> <TO>                e.g. 100 USD CAD
+ *  - <amount>,<amount>,... <FROM> <TO>   e.g. 100,250,19.99 USD CAD
+ *  - <conversion>; <conversion>; ...     e.g. 100 USD CAD; 5 EUR JPY
+ *
+ * With a rate history (see below), also at the rates of a past day,
+ * and the average rate over a period:
+ *
+ *  - <amounts> <FROM> <TO> <YYYY-MM-DD>  e.g. 100 USD CAD 2026-09-15
+ *  - avg <FROM> <TO> <first> <last>      e.g. avg EUR CAD 2026-09-01 2026-10-31
+ *
+ * Examples:
+ *
+ *  $ telnet 127.0.0.1 40613
+ *    > 100
+ *    CAD: 146.86999999999998
+ *
+ *  $ telnet 127.0.0.1 40613
+ *    > 100,250 EUR CAD; 20 USD GBP; 5 EUR XYZ
+ *    CAD: 146.86999999999998 367.17499999999995
+ *    GBP: 15.810736026563363
+ *    No exchange rate for: XYZ
+ *
+ *  $ telnet 127.0.0.1 40613
+ *    > 100,250 USD CAD 2026-09-15; 5 EUR XYZ 2026-09-15
+ *    CAD: 135.4639365430732 338.65984135768304
+ *    No exchange rate for: XYZ on 2026-09-15
+ *
+ *  $ telnet 127.0.0.1 40613
+ *    > avg EUR CAD 2026-09-01 2026-10-31
+ *    CAD: 1.4350259877993243 (5 days)
+ *
+ * Conversions are served from the CrossRates matrix of the current
+ * rates, so each amount is converted with one multiply.
+ *
  * Requires the environment variable APIKEY to be set. 
  * To obtain an API key, refer to: https://exchangeratesapi.io/
  * Requires signing up with a free account.
+ *
+ * The rates are cached (see ExchangeRateCache), so requests do not
+ * call the API: they are fetched at startup and refreshed in the
+ * background every EXCHANGE_TTL seconds. While the API is slow or
+ * down, the last rates are served (see ExchangeRateUpstream for the
+ * timeouts, circuit breaker and hedging). The request 'stats' returns
+ * the cache and API counters. Set EXCHANGE_CURRENCIES=CAD to keep
+ * only the CAD rate of each API response. To run without an API key,
+ * start ExchangeRateStub and point EXCHANGE_URL to it.
+ *
+ * Set EXCHANGE_HISTORY to a file path to keep the rates of each day
+ * in a RateHistory, a memory-mapped file that is kept across
+ * restarts. The first conversion for a day that is not stored
+ * fetches its rates once from the API's historical endpoint; later
+ * ones, and averages, are answered from the file without calling
+ * the API. Averages only count the days stored. EXCHANGE_HISTORY_START
+ * is the first day the file can hold (default 1999-01-01).
+ *
+ * With FRAMES=true, requests are also taken as binary frames (see
+ * FrameServer), many at a time over one connection. The payload of
+ * a frame is a request line, and the response's is its answer,
+ * without the line end.
  */
 public class ExchangeRateService extends Thread {
   
   private static PrintStream log = System.out;
 
+  private static ExchangeRateCache rates;
+  private static RateHistory history;
+
   private Socket client;
 
   public ExchangeRateService(Socket client) {
     this.client = client;
   }
 
+  /**
+   * Answers each of the ';' separated conversions on its own line.
+   */
+  private static String convert(String request) {
+    StringBuilder response = new StringBuilder();
+    for (String conversion : request.split(";")) {
+      if (response.length() > 0) {
+        response.append(System.lineSeparator());
+      }
+      try {
+        response.append(convertOne(conversion.trim()));
+      } catch (IOException e) {
+        log.println(e);
+        response.append("Exchange rate unavailable: ").append(e.getMessage());
+      }
+    }
+    return response.toString();
+  }
+
+  private static String convertOne(String conversion) throws IOException {
+    String[] parts = conversion.split("\\s+");
+    if (parts.length == 4) {
+      return convertOn(parts);
+    }
+    if (parts.length != 3) {
+      return "Don't understand: " + conversion;
+    }
+    CrossRates cross = rates.crossRates();
+    int from = cross.id(parts[1].toUpperCase());
+    int to   = cross.id(parts[2].toUpperCase());
+    if (from == CrossRates.NONE || to == CrossRates.NONE) {
+      return "No exchange rate for: " + parts[(from == CrossRates.NONE) ? 1 : 2];
+    }
+    return convert(parts[0], cross.currency(to), cross.rate(from, to));
+  }
+
+  /**
+   * Converts at the rates of a past day, from the RateHistory.
+   */
+  private static String convertOn(String[] parts) throws IOException {
+    LocalDate date;
+    try {
+      date = LocalDate.parse(parts[3]);
+    } catch (DateTimeParseException e) {
+      return "Invalid date. Expected YYYY-MM-DD, got: " + parts[3];
+    }
+    if (history == null) {
+      return "Historical rates not enabled";
+    }
+    String from = parts[1].toUpperCase();
+    String to   = parts[2].toUpperCase();
+    RateHistory stored = rates.history(date);
+    double rate = stored.convert(1.0, date, from, to);
+    if (Double.isNaN(rate)) {
+      return "No exchange rate for: " + (Double.isNaN(stored.rate(date, from)) ? from : to) + " on " + date;
+    }
+    return convert(parts[0], to, rate);
+  }
+
+  private static String convert(String amounts, String to, double rate) {
+    StringBuilder line = new StringBuilder(to).append(':');
+    for (String amount : amounts.split(",")) {
+      double value;
+      try {
+        value = Double.parseDouble(amount);
+      } catch (NumberFormatException e) {
+        return "Invalid amount. Expected a number, got: " + amount;
+      }
+      if (!(value >= 0) || Double.isInfinite(value)) {
+        return "Invalid amount. Expected a positive number, got: " + amount;
+      }
+      line.append(' ').append(value * rate);
+    }
+    return line.toString();
+  }
+
+  /**
+   * Answers 'avg FROM TO first last' from the days stored in the
+   * RateHistory.
+   */
+  private static String average(String request) {
+    String[] parts = request.split("\\s+");
+    if (parts.length != 5) {
+      return "Don't understand: " + request;
+    }
+    if (history == null) {
+      return "Historical rates not enabled";
+    }
+    LocalDate first, last;
+    try {
+      first = LocalDate.parse(parts[3]);
+      last  = LocalDate.parse(parts[4]);
+    } catch (DateTimeParseException e) {
+      return "Invalid date. Expected YYYY-MM-DD, got: " + e.getParsedString();
+    }
+    String from = parts[1].toUpperCase();
+    String to   = parts[2].toUpperCase();
+    RateHistory.Average average = history.average(from, to, first, last);
+    if (average.days == 0) {
+      return "No exchange rates for " + from + " " + to + " from " + first + " to " + last;
+    }
+    return String.format("%s: %s (%d days)", to, average.value, average.days);
+  }
+
+  private static String respond(String request) {
+    if (request.equals("stats")) {
+      return rates.stats();
+    } else if (request.startsWith("avg ")) {
+      return average(request);
+    }
+    // Check input is number (value x EUR)
+    if (request.matches("^\\d+$")) {
+      request += " EUR CAD";
+    }
+    return convert(request);
+  }
+
   public void run() {
     log.printf("Connected to %s:%d\n", client.getInetAddress(), client.getPort());
     
@@ -38,36 +219,7 @@ public class ExchangeRateService extends Thread {
       Scanner req     = new Scanner(client.getInputStream()); 
       PrintStream res = new PrintStream(client.getOutputStream(), true)
     ) {	
-      String response;
-      String request = req.nextLine();
-
-      // Load API Key from environment variable
-      String apiKey = System.getenv("APIKEY");
-
-      // Check input is number (value x EUR)
-      if (request.matches("^\\d+$")) {
-        URL url = new URL("http://data.fixer.io/api/latest?access_key=" + apiKey);
-
-        String payload = "";
-        try (Scanner http = new Scanner(url.openStream())) {
-          while (http.hasNextLine()) {
-            payload += http.nextLine();
-          }
-        }
-
-        // Get exchange rate from JSON API response
-        JsonParser parser = new JsonParser();
-        JsonObject data   = parser.parse(payload).getAsJsonObject();
-
-        int value   = Integer.parseInt(request);
-        double rate = data.get("rates").getAsJsonObject()
-                          .get("CAD").getAsDouble();
-
-        response = "CAD: " + (value * rate);
-      } else {
-        response = "Don't understand: " + request;
-      }
-      res.println(response);
+      res.println(respond(req.nextLine()));
     } catch (Exception e) {
       log.println("Error: " + e);
     } finally {
@@ -78,8 +230,24 @@ public class ExchangeRateService extends Thread {
   public static void main(String[] args) throws Exception {
     int port = 0;
     InetAddress host = InetAddress.getLocalHost(); // .getLoopbackAddress();
+    rates = ExchangeRateCache.fromConfig();
+    String path = Config.get("EXCHANGE_HISTORY", null);
+    if (path != null) {
+      history = RateHistory.open(new File(path),
+        LocalDate.parse(Config.get("EXCHANGE_HISTORY_START", "1999-01-01")), "EUR");
+      rates.setHistory(history);
+      log.printf("Rate history %s: %d currencies since %s\n",
+        history.getFile(), history.getCurrencies().size(), history.getStart());
+    }
+    rates.start();
     try (ServerSocket server = new ServerSocket(port, 0, host)) {
       log.printf("Server listening on %s:%d\n", server.getInetAddress(), server.getLocalPort());
+      FrameServer frames = FrameServer.fromConfig(host,
+        request -> respond(new String(request, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8));
+      if (frames != null) {
+        frames.start();
+        log.printf("Frames listening on %s\n", frames.getLocalAddress());
+      }
       while (true) {
         Socket client = server.accept();
         (new ExchangeRateService(client)).start();
@@ -0,0 +1,237 @@
+package services;
+
+import java.io.BufferedOutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.StringTokenizer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.JsonObject;
+
+import model.TaxGson;
+
+
+/**
+ * A local stand-in for the fixer.io API, to run ExchangeRateService
+ * without an API key or network access.
+ *
+ * Answers GET /api/latest (with any query-string) with fixed rates
+ * in fixer.io's format, GET /api/YYYY-MM-DD with rates that vary by
+ * day, and 404 NOT FOUND to anything else. Each
+ * response is numbered, so the log shows how often the service
+ * calls the API, and on which connection: connections are kept
+ * alive for further requests, unless the client asks to close.
+ *
+ * Faults can be injected, to test how the service copes with a
+ * slow or failing API:
+ *
+ *  - delay      milliseconds before every response (STUB_DELAY)
+ *  - fail       fraction of requests answered with 500 INTERNAL
+ *               SERVER ERROR (STUB_FAIL)
+ *  - slow       fraction of requests delayed by a further slowdelay
+ *               milliseconds (STUB_SLOW and STUB_SLOW_DELAY)
+ *
+ * They are set at startup from the environment variables, and can
+ * be changed while running with GET /faults?name=value&..., which
+ * answers with the current settings.
+ *
+ * Example:
+ *
+ *    $ java ExchangeRateStub
+ *    Server listening on localhost/127.0.0.1:40211
+ *
+ *    $ EXCHANGE_URL=http://localhost:40211/api/latest java ExchangeRateService
+ *
+ *  $ telnet 127.0.0.1 40211
+ *    > GET /api/latest HTTP/1.1
+ *    >
+ *    HTTP/1.1 200 OK
+ *    Content-type: application/json
+ *    Content-length: 192
+ *    Connection: keep-alive
+ *
+ *    {"success":true,"timestamp":1760882400,"base":"EUR","date":"2026-10-19",
+ *    "rates":{"AUD":1.6521,"CAD":1.4687,"CHF":0.9612,"EUR":1.0,"GBP":0.8571,
+ *    "JPY":163.42,"USD":1.0842}}
+ *
+ */
+public class ExchangeRateStub extends Thread {
+  private static PrintStream log = System.out;
+
+  private static final Map<String, Double> RATES = new LinkedHashMap<>();
+
+  static {
+    RATES.put("AUD", 1.6521);
+    RATES.put("CAD", 1.4687);
+    RATES.put("CHF", 0.9612);
+    RATES.put("EUR", 1.0);
+    RATES.put("GBP", 0.8571);
+    RATES.put("JPY", 163.42);
+    RATES.put("USD", 1.0842);
+  }
+
+  private static final Pattern HISTORICAL = Pattern.compile("/api/(\\d{4}-\\d{2}-\\d{2})(\\?.*)?");
+
+  private static final AtomicLong served      = new AtomicLong();
+  private static final AtomicLong connections = new AtomicLong();
+
+  private static final int IDLE_TIMEOUT = 30000;
+
+  // Injected faults
+  private static volatile long delay;
+  private static volatile double fail;
+  private static volatile double slow;
+  private static volatile long slowDelay;
+
+  private Socket client;
+
+  private ExchangeRateStub(Socket client) {
+    this.client = client;
+  }
+
+  private static String latest() {
+    return rates(LocalDate.now(), 1.0);
+  }
+
+  /**
+   * The rates of a past day: the fixed rates, moved up or down by
+   * up to 5% in a cycle of about half a year, so that every day
+   * has its own.
+   */
+  private static String historical(LocalDate date) {
+    return rates(date, 1.0 + 0.05 * Math.sin(date.toEpochDay() / 30.0));
+  }
+
+  private static String rates(LocalDate date, double scale) {
+    JsonObject rates = new JsonObject();
+    for (Map.Entry<String, Double> rate : RATES.entrySet()) {
+      rates.addProperty(rate.getKey(), rate.getKey().equals("EUR") ? rate.getValue() : rate.getValue() * scale);
+    }
+    JsonObject data = new JsonObject();
+    data.addProperty("success", true);
+    data.addProperty("timestamp", System.currentTimeMillis() / 1000);
+    data.addProperty("base", "EUR");
+    data.addProperty("date", date.toString());
+    data.add("rates", rates);
+    return TaxGson.GSON.toJson(data);
+  }
+
+  private static void setFaults(String qs) {
+    for (String field : qs.split("&")) {
+      String[] pair = field.split("=", 2);
+      if (pair.length < 2) {
+        continue;
+      }
+      switch (pair[0]) {
+        case "delay":     delay     = Long.parseLong(pair[1]); break;
+        case "fail":      fail      = Double.parseDouble(pair[1]); break;
+        case "slow":      slow      = Double.parseDouble(pair[1]); break;
+        case "slowdelay": slowDelay = Long.parseLong(pair[1]); break;
+        default:
+      }
+    }
+  }
+
+  public void run() {
+    try (
+      Socket client   = this.client;
+      Scanner req     = new Scanner(client.getInputStream(), "UTF-8");
+      PrintStream res = new PrintStream(new BufferedOutputStream(client.getOutputStream()), false, "UTF-8")
+    ) {
+      long connection = connections.incrementAndGet();
+      client.setSoTimeout(IDLE_TIMEOUT); // ends the loop on an idle connection
+
+      // Requests on a kept-alive connection are answered in turn
+      boolean keepAlive = true;
+      while (keepAlive && req.hasNextLine()) {
+        String request = req.nextLine();
+        if (request.isEmpty()) {
+          continue;
+        }
+        String header;
+        while (req.hasNextLine() && !(header = req.nextLine()).isEmpty()) {
+          if (header.toLowerCase().matches("connection:\\s*close\\s*")) {
+            keepAlive = false;
+          }
+        }
+        StringTokenizer parse = new StringTokenizer(request);
+        String method   = parse.nextToken();
+        String endpoint = parse.nextToken();
+        if (request.endsWith("HTTP/1.0")) {
+          keepAlive = false;
+        }
+        respond(res, method, endpoint, request, connection, keepAlive);
+      }
+    } catch (Exception e) {
+      log.println(e);
+    }
+  }
+
+  private void respond(PrintStream res, String method, String endpoint, String request,
+                       long connection, boolean keepAlive) throws InterruptedException {
+    int status;
+    String response;
+    Matcher day = HISTORICAL.matcher(endpoint);
+    if (method.equals("GET") && (endpoint.equals("/api/latest") || endpoint.startsWith("/api/latest?") || day.matches())) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      long wait = delay + ((random.nextDouble() < slow) ? slowDelay : 0);
+      if (wait > 0) {
+        Thread.sleep(wait);
+      }
+      if (random.nextDouble() < fail) {
+        status   = 500;
+        response = "INTERNAL SERVER ERROR";
+      } else {
+        status   = 200;
+        response = day.matches() ? historical(LocalDate.parse(day.group(1))) : latest();
+      }
+      log.printf("%s:%d: %d - GET %s (#%d on connection #%d, %d ms)\n",
+        client.getInetAddress(), client.getPort(), status, endpoint.replaceAll("\\?.*", ""),
+        served.incrementAndGet(), connection, wait);
+    } else if (method.equals("GET") && (endpoint.equals("/faults") || endpoint.startsWith("/faults?"))) {
+      if (endpoint.contains("?")) {
+        setFaults(endpoint.substring(endpoint.indexOf('?') + 1));
+      }
+      status   = 200;
+      response = String.format("delay=%d fail=%s slow=%s slowdelay=%d", delay, fail, slow, slowDelay);
+      log.printf("%s:%d: %d - %s\n", client.getInetAddress(), client.getPort(), status, response);
+    } else {
+      status   = 404;
+      response = "NOT FOUND";
+      log.printf("%s:%d: %d - %s\n", client.getInetAddress(), client.getPort(), status, request);
+    }
+
+    res.printf("HTTP/1.1 %d %s\r\n", status, (status == 200) ? "OK" : response);
+    res.printf("Content-type: %s\r\n", response.startsWith("{") ? "application/json" : "text/plain");
+    res.printf("Content-length: %d\r\n", response.getBytes(StandardCharsets.UTF_8).length);
+    res.printf("Connection: %s\r\n\r\n", keepAlive ? "keep-alive" : "close");
+    res.print(response);
+    res.flush();
+  }
+
+  public static void main(String[] args) throws Exception {
+    int port = 0;
+    InetAddress host = InetAddress.getLocalHost(); // .getLoopbackAddress();
+    delay     = Config.getLong("STUB_DELAY", 0);
+    fail      = Double.parseDouble(Config.get("STUB_FAIL", "0"));
+    slow      = Double.parseDouble(Config.get("STUB_SLOW", "0"));
+    slowDelay = Config.getLong("STUB_SLOW_DELAY", 0);
+    try (ServerSocket server = new ServerSocket(port, 0, host)) {
+      log.printf("Server listening on %s:%d\n", server.getInetAddress(), server.getLocalPort());
+      while (true) {
+        Socket client = server.accept();
+        (new ExchangeRateStub(client)).start();
+      }
+    }
+  }
+}
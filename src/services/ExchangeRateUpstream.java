@@ -0,0 +1,292 @@
+package services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Fetches the latest rates from a fixer.io style API, without
+ * letting a slow or failing API hold up its callers:
+ *
+ *  - Every call has a connect and a read timeout.
+ *  - A CircuitBreaker stops calling the API after consecutive
+ *    failures, so fetches fail at once while it is down. Past days
+ *    have a breaker of their own, so requests for days the API
+ *    cannot serve do not stop the refresh of the latest rates.
+ *  - When hedging is on, a second call is started if the first
+ *    has not answered after the hedge delay, and the first good
+ *    response of the two is used. This cuts the tail latency
+ *    from the occasional slow response, for one extra call.
+ *
+ * Connections to the API are kept alive and reused between calls,
+ * from the JDK's HttpURLConnection pool (up to http.maxConnections
+ * per host, 5 by default). Responses are read with an
+ * ExchangeRateReader, which only keeps the rates of the currencies
+ * in EXCHANGE_CURRENCIES (comma-separated; all when not set). The
+ * rates of a past day are all kept, as they go to a RateHistory.
+ * fetchAsync() fetches on a background thread.
+ *
+ * Settings are read from EXCHANGE_CONNECT_TIMEOUT and
+ * EXCHANGE_READ_TIMEOUT (milliseconds, default 2000 and 5000),
+ * EXCHANGE_BREAKER_FAILURES (default 5), EXCHANGE_BREAKER_OPEN
+ * (seconds, default 30) and EXCHANGE_HEDGE (milliseconds,
+ * default 0, which turns hedging off).
+ */
+public class ExchangeRateUpstream {
+  private final URL url;
+  private final int connectTimeout;
+  private final int readTimeout;
+  private final long hedge;
+  private final CircuitBreaker breaker;
+  private final CircuitBreaker historyBreaker;
+  private final ExchangeRateReader reader;
+
+  private static final ExchangeRateReader ALL = new ExchangeRateReader();
+
+  private static final ThreadLocal<byte[]> drain = ThreadLocal.withInitial(() -> new byte[1024]);
+
+  private final ExecutorService calls = Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "exchange-rate-call-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong hedged   = new AtomicLong();
+
+  public ExchangeRateUpstream(URL url, int connectTimeout, int readTimeout, long hedge, CircuitBreaker breaker,
+                              CircuitBreaker historyBreaker) {
+    this(url, connectTimeout, readTimeout, hedge, breaker, historyBreaker, new ExchangeRateReader());
+  }
+
+  public ExchangeRateUpstream(URL url, int connectTimeout, int readTimeout, long hedge, CircuitBreaker breaker,
+                              CircuitBreaker historyBreaker, ExchangeRateReader reader) {
+    this.url            = url;
+    this.connectTimeout = connectTimeout;
+    this.readTimeout    = readTimeout;
+    this.hedge          = hedge;
+    this.breaker        = breaker;
+    this.historyBreaker = historyBreaker;
+    this.reader         = reader;
+  }
+
+  /**
+   * Creates the upstream from the EXCHANGE_* environment variables.
+   */
+  public static ExchangeRateUpstream fromConfig() throws IOException {
+    String url = Config.get("EXCHANGE_URL", "http://data.fixer.io/api/latest?access_key=" + System.getenv("APIKEY"));
+    int failures = Config.getInt("EXCHANGE_BREAKER_FAILURES", 5);
+    long open    = TimeUnit.SECONDS.toMillis(Config.getLong("EXCHANGE_BREAKER_OPEN", 30));
+
+    Set<String> currencies = new LinkedHashSet<>();
+    for (String currency : Config.get("EXCHANGE_CURRENCIES", "").split(",")) {
+      if (!currency.trim().isEmpty()) {
+        currencies.add(currency.trim().toUpperCase());
+      }
+    }
+
+    return new ExchangeRateUpstream(new URL(url),
+      Config.getInt("EXCHANGE_CONNECT_TIMEOUT", 2000),
+      Config.getInt("EXCHANGE_READ_TIMEOUT", 5000),
+      Config.getLong("EXCHANGE_HEDGE", 0),
+      new CircuitBreaker(failures, open), new CircuitBreaker(failures, open),
+      new ExchangeRateReader(currencies));
+  }
+
+  public URL getURL() {
+    return url;
+  }
+
+  /**
+   * Whether a fetch() would call the API, i.e. the circuit
+   * breaker is not open.
+   */
+  public boolean isAvailable() {
+    return !breaker.isOpen();
+  }
+
+  /**
+   * Whether fetch() keeps only some of the currencies.
+   */
+  public boolean isFiltered() {
+    return !reader.getCurrencies().isEmpty();
+  }
+
+  /**
+   * The longest a fetch() can take, in milliseconds.
+   */
+  public long deadline() {
+    return hedge + connectTimeout + readTimeout;
+  }
+
+  /**
+   * Fetches the latest rates. Fails at once with an IOException if
+   * the circuit breaker is open.
+   */
+  public ExchangeRates fetch() throws IOException {
+    return fetch(url, reader, breaker);
+  }
+
+  /**
+   * Fetches the rates of all currencies on a past day, from the API's
+   * historical endpoint (the URL with the day in place of 'latest').
+   * Fails at once with an IOException if the breaker for past days
+   * is open.
+   */
+  public ExchangeRates fetch(LocalDate date) throws IOException {
+    String latest = url.toString();
+    int at = latest.indexOf("/latest");
+    if (at < 0) {
+      throw new IOException("No historical rates: the API URL has no /latest");
+    }
+    return fetch(new URL(latest.substring(0, at + 1) + date + latest.substring(at + "/latest".length())), ALL, historyBreaker);
+  }
+
+  private ExchangeRates fetch(URL url, ExchangeRateReader reader, CircuitBreaker breaker) throws IOException {
+    if (!breaker.allow()) {
+      throw new IOException("Exchange rate API circuit breaker is open");
+    }
+    try {
+      ExchangeRates rates = hedged(url, reader);
+      breaker.success();
+      return rates;
+    } catch (IOException e) {
+      failures.incrementAndGet();
+      breaker.failure();
+      throw e;
+    }
+  }
+
+  /**
+   * Fetches the latest rates on a background thread.
+   */
+  public CompletableFuture<ExchangeRates> fetchAsync() {
+    CompletableFuture<ExchangeRates> future = new CompletableFuture<>();
+    calls.execute(() -> {
+      try {
+        future.complete(fetch());
+      } catch (Throwable e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
+  private ExchangeRates hedged(URL url, ExchangeRateReader reader) throws IOException {
+    if (hedge <= 0) {
+      return call(url, reader);
+    }
+    CompletableFuture<ExchangeRates> first = submit(url, reader);
+    try {
+      return first.get(hedge, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      hedged.incrementAndGet();
+    } catch (ExecutionException e) {
+      return unwrap(first);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while fetching exchange rates", e);
+    }
+    CompletableFuture<ExchangeRates> second = submit(url, reader);
+
+    // The first good response wins; fails only when both have failed
+    CompletableFuture<ExchangeRates> either = new CompletableFuture<>();
+    AtomicInteger failed = new AtomicInteger();
+    for (CompletableFuture<ExchangeRates> call : Arrays.asList(first, second)) {
+      call.whenComplete((rates, error) -> {
+        if (error == null) {
+          either.complete(rates);
+        } else if (failed.incrementAndGet() == 2) {
+          either.completeExceptionally(error);
+        }
+      });
+    }
+    return unwrap(either);
+  }
+
+  private CompletableFuture<ExchangeRates> submit(URL url, ExchangeRateReader reader) {
+    CompletableFuture<ExchangeRates> future = new CompletableFuture<>();
+    calls.execute(() -> {
+      try {
+        future.complete(call(url, reader));
+      } catch (Throwable e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
+  private static ExchangeRates unwrap(CompletableFuture<ExchangeRates> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while fetching exchange rates", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof CompletionException && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      throw new IOException(cause.toString(), cause);
+    }
+  }
+
+  private ExchangeRates call(URL url, ExchangeRateReader reader) throws IOException {
+    requests.incrementAndGet();
+    HttpURLConnection http = (HttpURLConnection)url.openConnection();
+    http.setConnectTimeout(connectTimeout);
+    http.setReadTimeout(readTimeout);
+
+    int status = http.getResponseCode();
+    if (status != HttpURLConnection.HTTP_OK) {
+      // Reading the error body to the end keeps the connection reusable
+      try (InputStream error = http.getErrorStream()) {
+        if (error != null) {
+          while (error.read(drain.get()) >= 0) { }
+        }
+      }
+      throw new IOException("Exchange rate API returned HTTP " + status);
+    }
+    // Closing the body once read returns the connection to the pool
+    try (
+      InputStream body = http.getInputStream();
+      Reader in        = new InputStreamReader(body, StandardCharsets.UTF_8)
+    ) {
+      return reader.read(in);
+    }
+  }
+
+  public String stats() {
+    return String.format("upstream-requests=%d failures=%d hedged=%d breaker=%s opened=%d rejected=%d " +
+                         "history-breaker=%s history-opened=%d history-rejected=%d",
+      requests.get(), failures.get(), hedged.get(),
+      breaker.state(), breaker.opened(), breaker.rejected(),
+      historyBreaker.state(), historyBreaker.opened(), historyBreaker.rejected());
+  }
+}
@@ -0,0 +1,69 @@
+package services;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The exchange rates of one response of the rate API: the price
+ * of one unit of the base currency in each currency, and when
+ * they were fetched. Immutable.
+ *
+ * The CrossRates matrix between all the currencies is built along
+ * with the rates, when they are fetched rather than when they are
+ * first used, so requests always find it ready.
+ */
+public final class ExchangeRates {
+
+  private final String base;
+  private final LocalDate date;
+  private final Map<String, Double> rates;
+  private final CrossRates cross;
+  private final long fetched = System.nanoTime();
+
+  public ExchangeRates(String base, Map<String, Double> rates) {
+    this(base, null, rates);
+  }
+
+  /**
+   * @param date  the day the rates are for, or null if not known
+   */
+  public ExchangeRates(String base, LocalDate date, Map<String, Double> rates) {
+    this.base  = base;
+    this.date  = date;
+    this.rates = Collections.unmodifiableMap(rates);
+    this.cross = new CrossRates(base, rates);
+  }
+
+  public String getBase() {
+    return base;
+  }
+
+  public LocalDate getDate() {
+    return date;
+  }
+
+  public Map<String, Double> getRates() {
+    return rates;
+  }
+
+  /**
+   * The rate of the currency, or null if there is none.
+   */
+  public Double get(String currency) {
+    return rates.get(currency);
+  }
+
+  public CrossRates getCrossRates() {
+    return cross;
+  }
+
+  /**
+   * Milliseconds since the rates were fetched.
+   */
+  public long age() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - fetched);
+  }
+}
@@ -0,0 +1,398 @@
+package services;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A binary framing layer for the TCP services, over non-blocking
+ * channels, so one connection can carry many requests at a time.
+ *
+ * Requests are frames (integers big-endian):
+ *
+ *    int      length of the rest of the frame, in bytes (4 + payload)
+ *    int      request id, chosen by the client
+ *    bytes    payload
+ *
+ * and responses the same, with a status before the payload:
+ *
+ *    int      length of the rest of the frame, in bytes (5 + payload)
+ *    int      request id
+ *    byte     status: OK (0), or ERROR (1) if the handler failed
+ *    bytes    payload, or the error message (UTF-8) if ERROR
+ *
+ * The payload of a request is what the service's text protocol
+ * takes as a line, without the line end; the payload of a response
+ * is what the service answers to it, e.g. lines of text or a 'bin'
+ * message, whatever its length. A response has the id of its request
+ * and is sent as soon as it is ready: responses come back in any
+ * order, and a slow request does not hold up the ones after it. The
+ * client matches them by id; ids are not interpreted by the server.
+ *
+ * One thread runs a Selector over all the connections. Each has two
+ * direct buffers leased from BufferPool.SHARED, one for reading and one for
+ * writing: frames are parsed in place from the read buffer as soon
+ * as they are complete, and the responses are copied into the write
+ * buffer, many at a time, until the socket takes no more. Requests
+ * are answered on FRAMES_THREADS handler threads (default 8), or on
+ * the selector thread if 0, for services that answer without ever
+ * blocking. A request longer than the buffer (64 KB) is a protocol
+ * error, and closes its connection. A connection with MAX_PENDING
+ * requests unanswered or unsent is not read from until its client
+ * reads the responses, so a client cannot fill the server's memory.
+ * Past FRAMES_MAX_CONNECTIONS open connections (default 256), new
+ * ones are closed as soon as they are accepted, as each holds two
+ * buffers.
+ *
+ * Started by the services when FRAMES=true, on a port of its own
+ * (FRAMES_PORT, default 0, any free port).
+ */
+public class FrameServer extends Thread {
+  private static PrintStream log = System.out;
+
+  /**
+   * Answers the payload of a request with the payload of the
+   * response. An exception is answered with an ERROR response of
+   * its message.
+   */
+  public interface Handler {
+    byte[] handle(byte[] request) throws Exception;
+  }
+
+  public static final int HEADER      = 9; // of a response
+  public static final int BUFFER      = 1 << 16;
+  public static final int MAX_PENDING = 1024;
+
+  public static final byte OK    = 0;
+  public static final byte ERROR = 1;
+
+  private static final BufferPool buffers = BufferPool.SHARED;
+
+  private final ServerSocketChannel server;
+  private final Selector selector;
+  private final Handler handler;
+  private final Executor executor;
+  private final int maxConnections;
+  private final Queue<Response> completed = new ConcurrentLinkedQueue<>();
+  private int open; // connections, on the selector thread
+
+  private final AtomicLong connections = new AtomicLong();
+  private final AtomicLong refused     = new AtomicLong();
+  private final AtomicLong requests    = new AtomicLong();
+  private final AtomicLong errors      = new AtomicLong();
+
+  private static final class Response {
+    final Connection connection;
+    final int id;
+    final byte status;
+    final byte[] payload;
+
+    Response(Connection connection, int id, byte status, byte[] payload) {
+      this.connection = connection;
+      this.id         = id;
+      this.status     = status;
+      this.payload    = payload;
+    }
+  }
+
+  private static final class Connection {
+    final SocketChannel channel;
+    final SelectionKey key;
+    final ByteBuffer in  = buffers.acquire(BUFFER);
+    final ByteBuffer out = buffers.acquire(BUFFER); // Always ready to put into
+    final ArrayDeque<Response> pending = new ArrayDeque<>();
+    int written;  // of the first pending frame
+    int inFlight; // requests not answered yet
+    boolean paused;
+    boolean eof;
+    boolean closed;
+
+    Connection(SocketChannel channel, SelectionKey key) {
+      this.channel = channel;
+      this.key     = key;
+    }
+  }
+
+  /**
+   * @param executor        runs the handler, or null to run it on the
+   *                        selector thread
+   * @param maxConnections  open at once; more are refused
+   */
+  public FrameServer(ServerSocketChannel server, Handler handler, Executor executor, int maxConnections)
+      throws IOException {
+    super("frame-server");
+    this.server         = server;
+    this.selector       = Selector.open();
+    this.handler        = handler;
+    this.executor       = executor;
+    this.maxConnections = maxConnections;
+    setDaemon(true);
+  }
+
+  /**
+   * Opens a FrameServer on the host if FRAMES=true, or returns null.
+   */
+  public static FrameServer fromConfig(InetAddress host, Handler handler) throws IOException {
+    if (!Config.get("FRAMES", "false").equals("true")) {
+      return null;
+    }
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(host, Config.getInt("FRAMES_PORT", 0)));
+
+    int threads = Config.getInt("FRAMES_THREADS", 8);
+    Executor executor = null;
+    if (threads > 0) {
+      executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "frame-handler-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return new FrameServer(server, handler, executor, Config.getInt("FRAMES_MAX_CONNECTIONS", 256));
+  }
+
+  public SocketAddress getLocalAddress() throws IOException {
+    return server.getLocalAddress();
+  }
+
+  public void run() {
+    try {
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+
+      while (server.isOpen()) {
+        selector.select();
+
+        Response response;
+        while ((response = completed.poll()) != null) {
+          deliver(response);
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          Connection connection = (Connection)key.attachment();
+          try {
+            if (key.isReadable()) {
+              read(connection);
+            }
+            if (key.isValid() && key.isWritable()) {
+              write(connection);
+            }
+          } catch (IOException e) {
+            log.printf("Frames: %s: %s\n", connection.channel.socket().getRemoteSocketAddress(), e);
+            close(connection);
+          }
+        }
+      }
+    } catch (IOException e) {
+      log.println(e);
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = server.accept();
+    if (channel == null) {
+      return;
+    }
+    if (open >= maxConnections) {
+      refused.incrementAndGet();
+      channel.close();
+      return;
+    }
+    open++;
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true); // Responses are written whole, never a byte at a time
+    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+    key.attach(new Connection(channel, key));
+    connections.incrementAndGet();
+  }
+
+  private void read(Connection connection) throws IOException {
+    if (connection.channel.read(connection.in) < 0) {
+      connection.eof = true;
+    }
+    parse(connection);
+    if (!connection.pending.isEmpty()) {
+      write(connection);
+    } else {
+      closeIfDone(connection);
+    }
+  }
+
+  /**
+   * Dispatches the complete frames in the read buffer, as long as the
+   * connection has fewer than MAX_PENDING requests unanswered or
+   * unsent. Past that, the connection is not read from until its
+   * client reads the responses.
+   */
+  private void parse(Connection connection) throws IOException {
+    ByteBuffer in = connection.in;
+    in.flip();
+    while (in.remaining() >= 4 && connection.inFlight + connection.pending.size() < MAX_PENDING) {
+      int length = in.getInt(in.position());
+      if (length < 4 || length > BUFFER - 4) {
+        throw new IOException("Bad frame length: " + length);
+      }
+      if (in.remaining() < 4 + length) {
+        break;
+      }
+      in.getInt();
+      int id         = in.getInt();
+      byte[] request = new byte[length - 4];
+      in.get(request);
+      dispatch(connection, id, request);
+    }
+    in.compact();
+
+    connection.paused = connection.inFlight + connection.pending.size() >= MAX_PENDING;
+    if (connection.eof || connection.paused) {
+      connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+    } else {
+      connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+    }
+  }
+
+  private void dispatch(Connection connection, int id, byte[] request) {
+    requests.incrementAndGet();
+    if (executor == null) {
+      connection.pending.add(respond(connection, id, request));
+      return;
+    }
+    connection.inFlight++;
+    executor.execute(() -> {
+      completed.add(respond(connection, id, request));
+      selector.wakeup();
+    });
+  }
+
+  private Response respond(Connection connection, int id, byte[] request) {
+    try {
+      return new Response(connection, id, OK, handler.handle(request));
+    } catch (Exception e) {
+      errors.incrementAndGet();
+      log.println(e);
+      String message = String.valueOf(e.getMessage());
+      return new Response(connection, id, ERROR, message.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private void deliver(Response response) throws IOException {
+    Connection connection = response.connection;
+    if (connection.closed) {
+      return;
+    }
+    connection.inFlight--;
+    connection.pending.add(response);
+    if (connection.written > 0 || connection.out.position() > 0) {
+      return; // Already waiting for the socket
+    }
+    try {
+      write(connection);
+    } catch (IOException e) {
+      log.printf("Frames: %s: %s\n", connection.channel.socket().getRemoteSocketAddress(), e);
+      close(connection);
+    }
+  }
+
+  /**
+   * Copies as many pending frames as fit into the write buffer, and
+   * writes it, until the socket takes no more or none are left.
+   */
+  private void write(Connection connection) throws IOException {
+    ByteBuffer out = connection.out;
+    while (true) {
+      while (!connection.pending.isEmpty() && out.hasRemaining()) {
+        Response response = connection.pending.peek();
+        if (connection.written == 0) {
+          if (out.remaining() < HEADER) {
+            break;
+          }
+          out.putInt(5 + response.payload.length).putInt(response.id).put(response.status);
+          connection.written = HEADER;
+        }
+        int from = connection.written - HEADER;
+        int n    = Math.min(out.remaining(), response.payload.length - from);
+        out.put(response.payload, from, n);
+        connection.written += n;
+        if (connection.written == HEADER + response.payload.length) {
+          connection.pending.poll();
+          connection.written = 0;
+        }
+      }
+
+      out.flip();
+      connection.channel.write(out);
+      out.compact();
+
+      if (out.position() > 0) { // The socket is full: wait until it can take more
+        connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+        return;
+      }
+      if (connection.pending.isEmpty() && connection.paused) {
+        parse(connection); // Take the requests it held back
+      }
+      if (connection.pending.isEmpty()) {
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+        closeIfDone(connection);
+        return;
+      }
+    }
+  }
+
+  private void closeIfDone(Connection connection) {
+    if (connection.eof && connection.inFlight == 0 && connection.pending.isEmpty() && connection.out.position() == 0) {
+      close(connection);
+    }
+  }
+
+  private void close(Connection connection) {
+    if (connection.closed) {
+      return;
+    }
+    connection.closed = true;
+    open--;
+    connection.key.cancel();
+    try {
+      connection.channel.close();
+    } catch (IOException e) {
+      log.println(e);
+    }
+    buffers.release(connection.in);
+    buffers.release(connection.out);
+  }
+
+  public String stats() {
+    return String.format("connections=%d refused=%d requests=%d errors=%d %s",
+      connections.get(), refused.get(), requests.get(), errors.get(), buffers.stats());
+  }
+}
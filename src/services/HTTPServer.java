@@ -13,7 +13,7 @@ import java.util.List;
 import java.util.Scanner;
 import java.util.StringTokenizer;
 
-import com.google.gson.Gson;
+import model.TaxGson;
 
 
 /**
@@ -245,7 +245,7 @@ public class HTTPServer extends Thread {
           } else if (endpoint.startsWith("/qs?")) {
             String[] components = getComponents(endpoint);
             contentType = "application/json";
-            response    = (new Gson()).toJson(getQueryStrings(components[1]));
+            response    = TaxGson.GSON.toJson(getQueryStrings(components[1]));
 
           } else if (endpoint.equals("/headers")) {
             // Read the request headers
@@ -257,7 +257,7 @@ public class HTTPServer extends Thread {
               headers.add(buff);
             }
             contentType = "application/json";
-            response    = (new Gson()).toJson(getHeaders(headers));
+            response    = TaxGson.GSON.toJson(getHeaders(headers));
 
           } else {
             status = 404;
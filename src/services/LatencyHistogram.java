@@ -0,0 +1,90 @@
+package services;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A histogram of latencies, in microseconds, that many threads can
+ * record into without locking.
+ *
+ * Buckets are log-linear: each power of two is split into SUB equal
+ * buckets, so a percentile is within 1/SUB (about 6%) of the true
+ * value, from 1 microsecond to hours, in a fixed 8 KB.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB   = 16;
+  private static final int SHIFT = 4; // log2(SUB)
+
+  private final AtomicLongArray counts = new AtomicLongArray(64 * SUB);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max   = new AtomicLong();
+
+  private static int index(long micros) {
+    if (micros < SUB) {
+      return (int)micros;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    int sub      = (int)(micros >>> (exponent - SHIFT)) & (SUB - 1);
+    return (exponent - SHIFT + 1) * SUB + sub;
+  }
+
+  // The smallest value of the bucket
+  private static long lowest(int index) {
+    if (index < SUB) {
+      return index;
+    }
+    int exponent = index / SUB + SHIFT - 1;
+    return (long)(SUB + index % SUB) << (exponent - SHIFT);
+  }
+
+  public void record(long nanos) {
+    long micros = Math.max(nanos / 1000, 0);
+    counts.incrementAndGet(index(micros));
+    count.incrementAndGet();
+    total.addAndGet(micros);
+
+    long highest;
+    while (micros > (highest = max.get()) && !max.compareAndSet(highest, micros)) { }
+  }
+
+  public long count() {
+    return count.get();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  public double mean() {
+    long count = this.count.get();
+    return (count == 0) ? 0 : (double)total.get() / count;
+  }
+
+  /**
+   * The latency under which 'percent' of the recorded ones are,
+   * in microseconds (the upper bound of its bucket).
+   */
+  public long percentile(double percent) {
+    long count = this.count.get();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max((long)Math.ceil(percent / 100 * count), 1);
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(lowest(i + 1) - 1, max.get());
+      }
+    }
+    return max.get();
+  }
+
+  public String toString() {
+    return String.format("n=%d mean=%.0fus p50=%dus p90=%dus p99=%dus max=%dus",
+      count(), mean(), percentile(50), percentile(90), percentile(99), max());
+  }
+}
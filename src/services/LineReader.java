@@ -0,0 +1,114 @@
+package services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.NoSuchElementException;
+
+
+/**
+ * Reads newline-terminated requests from a socket as raw bytes.
+ *
+ * Unlike Scanner, it does not decode characters or create a String
+ * per line. The current line is left in a reusable buffer, between
+ * start() and end(), for the services to tokenize in place. Lines
+ * end at '\n', '\r' or "\r\n", the same as Scanner.nextLine().
+ */
+public class LineReader {
+
+  private final InputStream in;
+  private byte[] buf;
+  private int pos;   // where the next line starts
+  private int limit; // end of the bytes read so far
+  private int start;
+  private int end;
+  private boolean skipLF;
+
+  public LineReader(InputStream in) {
+    this(in, 1024);
+  }
+
+  public LineReader(InputStream in, int size) {
+    this.in  = in;
+    this.buf = new byte[size];
+  }
+
+  /**
+   * Reads the next line. Returns false at the end of the stream.
+   */
+  public boolean next() throws IOException {
+    int from = pos;
+    int i    = pos;
+
+    while (true) {
+      if (skipLF && i < limit) {
+        skipLF = false;
+        if (buf[i] == '\n') {
+          from = ++i;
+        }
+      }
+      for (; i < limit; i++) {
+        byte b = buf[i];
+        if (b == '\n' || b == '\r') {
+          start  = from;
+          end    = i;
+          pos    = i + 1;
+          skipLF = (b == '\r');
+          return true;
+        }
+      }
+
+      // Out of bytes: make room and read more
+      if (from > 0) {
+        System.arraycopy(buf, from, buf, 0, limit - from);
+        i     -= from;
+        limit -= from;
+        from   = 0;
+      }
+      if (limit == buf.length) {
+        byte[] grown = new byte[buf.length * 2];
+        System.arraycopy(buf, 0, grown, 0, limit);
+        buf = grown;
+      }
+
+      int n = in.read(buf, limit, buf.length - limit);
+      if (n < 0) {
+        pos = limit;
+        if (i > from) { // last line without a terminator
+          start = from;
+          end   = i;
+          return true;
+        }
+        return false;
+      }
+      limit += n;
+    }
+  }
+
+  /**
+   * Same as next(), but throws like Scanner.nextLine() at the end of the stream.
+   */
+  public void nextLine() throws IOException {
+    if (!next()) {
+      throw new NoSuchElementException("No line found");
+    }
+  }
+
+  /**
+   * Returns true if more input is already buffered,
+   * i.e. next() may return without blocking.
+   */
+  public boolean buffered() {
+    if (skipLF && pos + 1 == limit && buf[pos] == '\n') {
+      return false;
+    }
+    return pos < limit;
+  }
+
+  public byte[] buffer() { return buf; }
+  public int start()     { return start; }
+  public int end()       { return end; }
+
+  public String toString() {
+    return new String(buf, start, end - start);
+  }
+}
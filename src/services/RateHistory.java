@@ -0,0 +1,375 @@
+package services;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A local store of daily exchange rates, in a memory-mapped file
+ * that rates are only ever added to.
+ *
+ * Each day has a row of CAPACITY doubles, one per currency id, at a
+ * position computed from the date: day 'd' is row d - start, so a
+ * rate is read with one multiply-add and no index. Currency ids are
+ * given out in the order currencies are first seen and recorded in
+ * the header. A rate of 0 means none (rates are positive). Each row
+ * starts with the number of rates stored in it, 0 until the row is
+ * complete, so days that were never stored, or not in full, read as
+ * empty, and the file can have gaps.
+ *
+ * The file is laid out as (all integers big-endian):
+ *
+ *    int      MAGIC ('RATH')
+ *    int      VERSION
+ *    int      CAPACITY, the number of doubles in a row
+ *    int      number of currencies
+ *    long     first day of the file (epoch day)
+ *    bytes    3 bytes of base currency, 1 of padding
+ *    bytes    CAPACITY x (3 bytes of currency code, 1 of padding)
+ *    ...      padding to HEADER bytes
+ *    long     row 0: number of rates of the first day, or 0
+ *    double   CAPACITY x rate of the first day, by currency id
+ *    long     row 1: ...
+ *
+ * The rates of a row are forced to disk, then the currency count in
+ * the header, and only then the row's count, so a crash leaves at
+ * worst a day unrecorded, never a day with part of its rates. A day's
+ * row is written once: rates already stored for a day are not
+ * replaced.
+ *
+ * There is one writer at a time (append() is synchronized). Reads
+ * do not lock; a day that is being appended is seen once all of its
+ * rates are.
+ */
+public class RateHistory implements Closeable {
+
+  public static final int MAGIC    = 0x52415448;
+  public static final int VERSION  = 2;
+  public static final int CAPACITY = 256;
+
+  private static final int HEADER = 4096;
+  private static final int ROW    = 8 + CAPACITY * 8; // count, then rates
+  private static final int GROWTH = 64; // days the file is extended by
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private final long start;
+  private final String base;
+
+  private volatile MappedByteBuffer buf;
+  private volatile String[] currencies;
+  private volatile int[] ids; // by CrossRates.code()
+  private volatile long days; // rows in the mapping
+
+  private RateHistory(File file, RandomAccessFile raf, long start, String base) throws IOException {
+    this.file    = file;
+    this.raf     = raf;
+    this.channel = raf.getChannel();
+    this.start   = start;
+    this.base    = base;
+  }
+
+  /**
+   * Opens the history file, creating it if it does not exist with
+   * the given first day and base currency. An existing file keeps
+   * its own.
+   */
+  public static RateHistory open(File file, LocalDate start, String base) throws IOException {
+    boolean exists = file.exists() && file.length() > 0;
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      if (!exists) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC).putInt(VERSION).putInt(CAPACITY).putInt(0);
+        header.putLong(start.toEpochDay());
+        header.put(ascii(base, "base currency"));
+        raf.write(header.array());
+        raf.getFD().sync();
+      }
+      if (raf.length() < HEADER) {
+        throw new IOException("Not a rate history: " + file);
+      }
+      MappedByteBuffer head = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+      if (head.getInt(0) != MAGIC) {
+        throw new IOException("Not a rate history: " + file);
+      }
+      if (head.getInt(4) != VERSION || head.getInt(8) != CAPACITY) {
+        throw new IOException("Unsupported rate history version: " + head.getInt(4));
+      }
+      RateHistory history = new RateHistory(file, raf, head.getLong(16), code(head, 24));
+      history.map(Math.max((raf.length() - HEADER) / ROW, 0));
+      return history;
+    } catch (IOException | RuntimeException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  private void map(long rows) throws IOException {
+    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + rows * ROW);
+    String[] codes = new String[map.getInt(12)];
+    for (int id = 0; id < codes.length; id++) {
+      codes[id] = code(map, 28 + id * 4);
+    }
+    setCurrencies(codes);
+    buf  = map;
+    days = rows;
+  }
+
+  private void setCurrencies(String[] codes) {
+    int[] index = new int[CrossRates.CODES];
+    Arrays.fill(index, -1);
+    for (int id = 0; id < codes.length; id++) {
+      index[CrossRates.code(codes[id])] = id;
+    }
+    ids        = index;
+    currencies = codes;
+  }
+
+  private static byte[] ascii(String code, String what) {
+    if (CrossRates.code(code) == CrossRates.NONE) {
+      throw new IllegalArgumentException("Expected a three-letter " + what + ", got: " + code);
+    }
+    return (code + "\0").getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static void putCode(ByteBuffer buf, int at, String code) {
+    byte[] bytes = ascii(code, "currency");
+    for (int i = 0; i < bytes.length; i++) {
+      buf.put(at + i, bytes[i]);
+    }
+  }
+
+  private static String code(ByteBuffer buf, int at) {
+    byte[] bytes = new byte[3];
+    for (int i = 0; i < 3; i++) {
+      bytes[i] = buf.get(at + i);
+    }
+    return new String(bytes, StandardCharsets.US_ASCII);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public String getBase() {
+    return base;
+  }
+
+  public LocalDate getStart() {
+    return LocalDate.ofEpochDay(start);
+  }
+
+  public List<String> getCurrencies() {
+    List<String> list = new ArrayList<>();
+    Collections.addAll(list, currencies);
+    return list;
+  }
+
+  /**
+   * The id of the currency, or -1 if it has never been stored.
+   */
+  public int id(String currency) {
+    int code = CrossRates.code(currency);
+    return (code == CrossRates.NONE) ? -1 : ids[code];
+  }
+
+  // Reading
+
+  private long row(LocalDate date) {
+    long row = date.toEpochDay() - start;
+    return (row < 0 || row >= days) ? -1 : row;
+  }
+
+  private static int offset(long row, int id) {
+    return (int)(HEADER + row * ROW + 8 + id * 8L);
+  }
+
+  private static double get(ByteBuffer buf, long row, int id) {
+    return buf.getDouble(offset(row, id));
+  }
+
+  private static boolean complete(ByteBuffer buf, long row) {
+    return buf.getLong((int)(HEADER + row * ROW)) != 0;
+  }
+
+  /**
+   * Whether rates are stored for the day.
+   */
+  public boolean has(LocalDate date) {
+    long row = row(date);
+    return row >= 0 && complete(buf, row);
+  }
+
+  /**
+   * The rate of the currency on the day, i.e. its price of one
+   * unit of the base currency, or NaN if none is stored.
+   */
+  public double rate(LocalDate date, String currency) {
+    int id = id(currency);
+    long row = row(date);
+    if (id < 0 || row < 0) {
+      return Double.NaN;
+    }
+    ByteBuffer buf = this.buf;
+    double rate = complete(buf, row) ? get(buf, row, id) : 0;
+    return (rate == 0) ? Double.NaN : rate;
+  }
+
+  /**
+   * Converts the amount at the rates of the day, or returns NaN
+   * if either rate is not stored.
+   */
+  public double convert(double amount, LocalDate date, String from, String to) {
+    return amount * (rate(date, to) / rate(date, from));
+  }
+
+  /**
+   * The average of a cross rate over a period of days.
+   */
+  public static final class Average {
+    public final double value;
+    public final int days;
+
+    Average(double value, int days) {
+      this.value = value;
+      this.days  = days;
+    }
+  }
+
+  /**
+   * The average number of units of 'to' for one unit of 'from'
+   * over the days from 'first' to 'last' inclusive, counting only
+   * the days both rates are stored for. The value is NaN if there
+   * are none.
+   */
+  public Average average(String from, String to, LocalDate first, LocalDate last) {
+    int fromId = id(from);
+    int toId   = id(to);
+    if (fromId < 0 || toId < 0) {
+      return new Average(Double.NaN, 0);
+    }
+    // 'days' before 'buf': the mapping is replaced before 'days' grows
+    long begin = Math.max(first.toEpochDay() - start, 0);
+    long end   = Math.min(last.toEpochDay() - start, days - 1);
+    ByteBuffer buf = this.buf;
+
+    double sum = 0;
+    int count  = 0;
+    for (long row = begin; row <= end; row++) {
+      if (!complete(buf, row)) {
+        continue;
+      }
+      double rateFrom = get(buf, row, fromId);
+      double rateTo   = get(buf, row, toId);
+      if (rateFrom != 0 && rateTo != 0) {
+        sum += rateTo / rateFrom;
+        count++;
+      }
+    }
+    return new Average((count == 0) ? Double.NaN : sum / count, count);
+  }
+
+  // Writing
+
+  /**
+   * Stores the rates of a day, unless the day already has rates.
+   * Rates relative to another base are converted to this history's
+   * base, which they must include. Returns whether they were stored.
+   */
+  public synchronized boolean append(LocalDate date, ExchangeRates rates) throws IOException {
+    long row = date.toEpochDay() - start;
+    if (row < 0) {
+      throw new IllegalArgumentException("Date " + date + " is before the history's start, " + getStart());
+    }
+    if (has(date)) {
+      return false;
+    }
+
+    double scale = 1.0;
+    if (!rates.getBase().equals(base)) {
+      Double rate = rates.get(base);
+      if (rate == null || !(rate > 0)) {
+        throw new IOException("Rates for " + date + " are relative to " + rates.getBase() + " and have no " + base);
+      }
+      scale = 1.0 / rate;
+    }
+
+    if (row >= days) {
+      map(row + GROWTH);
+    }
+    MappedByteBuffer buf = this.buf;
+    String[] codes = currencies;
+    List<String> added = new ArrayList<>();
+    int stored = 0;
+
+    // Clears what a crash may have left of an earlier append
+    for (int id = 0; id < CAPACITY; id++) {
+      buf.putDouble(offset(row, id), 0);
+    }
+
+    for (Map.Entry<String, Double> rate : rates.getRates().entrySet()) {
+      String currency = rate.getKey();
+      if (CrossRates.code(currency) == CrossRates.NONE || !(rate.getValue() > 0)) {
+        continue;
+      }
+      int id = id(currency);
+      if (id < 0) {
+        id = codes.length + added.size();
+        if (id >= CAPACITY) {
+          continue; // Full: new currencies are left out
+        }
+        putCode(buf, 28 + id * 4, currency);
+        added.add(currency);
+      }
+      double value = currency.equals(base) ? 1.0 : rate.getValue() * scale;
+      buf.putDouble(offset(row, id), value);
+      stored++;
+    }
+    if (id(base) < 0 && !added.contains(base) && codes.length + added.size() < CAPACITY) {
+      int id = codes.length + added.size();
+      putCode(buf, 28 + id * 4, base);
+      buf.putDouble(offset(row, id), 1.0);
+      added.add(base);
+      stored++;
+    }
+    if (stored == 0) {
+      return false;
+    }
+    buf.force();
+
+    // New currencies become visible once their rates are on disk
+    if (!added.isEmpty()) {
+      buf.putInt(12, codes.length + added.size());
+      buf.force();
+      String[] all = Arrays.copyOf(codes, codes.length + added.size());
+      for (int i = 0; i < added.size(); i++) {
+        all[codes.length + i] = added.get(i);
+      }
+      setCurrencies(all);
+    }
+
+    // The day is complete, and visible, once its count is on disk
+    buf.putLong((int)(HEADER + row * ROW), stored);
+    buf.force();
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    raf.close();
+  }
+}
@@ -0,0 +1,676 @@
+package services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A client for the services, for callers that make many requests:
+ * requests are asynchronous, and connections are kept and shared.
+ *
+ * Three protocols:
+ *
+ *  - line()   the services' text protocol: one line, answered with
+ *             text until the server closes the connection. As the
+ *             services close after each answer, each request has a
+ *             connection of its own, opened on one of 'connections'
+ *             client threads per host; the others wait for a thread.
+ *  - frame()  the frames of FrameServer: each host has a pool of
+ *             'connections' kept open, and each connection carries
+ *             any number of requests at a time. Responses come back
+ *             in any order and are matched by request id. An ERROR
+ *             response fails its request with an ErrorResponse.
+ *  - http()   HTTP/1.1, e.g. to ExchangeRateStub or HTTPServer: each
+ *             host has a pool of keep-alive connections, and requests
+ *             are pipelined on them, sent without waiting for the
+ *             responses before them, which come back in order.
+ *
+ * Requests are spread over the connections of a host in turn. A
+ * connection is opened when first needed, and again after the server
+ * closed it or it failed; the requests in flight on it fail with the
+ * IOException. Connections are opened on threads of their own, never
+ * on the caller's: the requests made meanwhile are sent once it is
+ * open. A response larger than MAX_RESPONSE (64 MB) is an error, and
+ * closes its connection.
+ *
+ * Each request returns a CompletableFuture, completed on the thread
+ * that reads the connection, so what is chained to it should not
+ * block. A request not answered within 'timeout' milliseconds fails
+ * with a TimeoutException; its response is dropped if it comes later.
+ * The latencies of the answered requests are recorded per host and
+ * protocol in a LatencyHistogram, see stats().
+ */
+public class ServiceClient implements Closeable {
+
+  private static final int BUFFER       = 1 << 16;
+  private static final int MAX_RESPONSE = 1 << 26;
+
+  private final int connections;
+  private final long timeout;
+  private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService timer;
+  private final ExecutorService connector = Executors.newCachedThreadPool(threads("service-client-connect"));
+  private volatile boolean closed;
+
+  /**
+   * A response to http(). Header names are case-insensitive.
+   */
+  public static final class HttpResponse {
+    public final int status;
+    public final Map<String, String> headers;
+    public final byte[] body;
+
+    HttpResponse(int status, Map<String, String> headers, byte[] body) {
+      this.status  = status;
+      this.headers = Collections.unmodifiableMap(headers);
+      this.body    = body;
+    }
+
+    public String text() {
+      return new String(body, StandardCharsets.UTF_8);
+    }
+
+    public String toString() {
+      return status + " " + text();
+    }
+  }
+
+  /**
+   * The server answered the request with an error, e.g. a frame
+   * whose handler failed. The message is the server's.
+   */
+  public static class ErrorResponse extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ErrorResponse(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * A request in flight, until answered, failed or timed out.
+   */
+  private static final class Call<T> {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    final long started = System.nanoTime();
+    final String method;
+    ScheduledFuture<?> timer;
+    volatile Runnable onTimeout; // once sent
+
+    Call(String method) {
+      this.method = method;
+    }
+  }
+
+  private final class Pool {
+    final String protocol;
+    final InetSocketAddress address;
+    final List<CompletableFuture<Connection>> slots = new ArrayList<>(Collections.nCopies(connections, null));
+    int next;
+
+    final LatencyHistogram latency = new LatencyHistogram();
+    final AtomicLong timeouts = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong opened   = new AtomicLong();
+    final Set<Call<String>> lineCalls = ConcurrentHashMap.newKeySet(); // Until done, for close()
+    ThreadPoolExecutor lines;
+
+    Pool(String protocol, InetSocketAddress address) {
+      this.protocol = protocol;
+      this.address  = address;
+    }
+
+    /**
+     * The next connection, once open. A connection to open is opened
+     * on the connector, not under the lock.
+     */
+    synchronized CompletableFuture<Connection> get() {
+      CompletableFuture<Connection> slot;
+      if (closed) {
+        slot = new CompletableFuture<>();
+        slot.completeExceptionally(new IOException("Client closed"));
+        return slot;
+      }
+      int i = next;
+      next  = (next + 1) % slots.size();
+      slot  = slots.get(i);
+      if (slot == null || (slot.isDone() && (slot.isCompletedExceptionally() || slot.join().closed))) {
+        slot = open();
+        slots.set(i, slot);
+      }
+      return slot;
+    }
+
+    private CompletableFuture<Connection> open() {
+      CompletableFuture<Connection> opening = new CompletableFuture<>();
+      try {
+        connector.execute(() -> {
+          try {
+            Connection connection = protocol.equals("frame") ? new FrameConnection(this) : new HttpConnection(this);
+            connection.start();
+            opened.incrementAndGet();
+            if (closed) {
+              connection.close(new IOException("Client closed"));
+            }
+            opening.complete(connection);
+          } catch (IOException | RuntimeException e) {
+            opening.completeExceptionally(e);
+          }
+        });
+      } catch (RuntimeException e) { // Rejected once closed
+        opening.completeExceptionally(new IOException("Client closed"));
+      }
+      return opening;
+    }
+
+    synchronized ExecutorService lines() {
+      if (lines == null) {
+        lines = new ThreadPoolExecutor(connections, connections, 10, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(), threads("service-client-line-" + address.getPort()));
+        lines.allowCoreThreadTimeOut(true);
+      }
+      return lines;
+    }
+
+    /**
+     * Fails the calls still queued for a thread or a connection, as
+     * their timeouts are cancelled with the timer.
+     */
+    synchronized void close() {
+      if (lines != null) {
+        lines.shutdownNow();
+      }
+      for (Call<String> call : lineCalls) {
+        fail(call, new IOException("Client closed"));
+      }
+      for (CompletableFuture<Connection> slot : slots) {
+        if (slot != null) {
+          slot.completeExceptionally(new IOException("Client closed")); // Fails the calls waiting on it
+          slot.thenAccept(connection -> connection.close(new IOException("Client closed")));
+        }
+      }
+    }
+
+    <T> Call<T> call(String method) {
+      Call<T> call = new Call<>(method);
+      call.timer = timer.schedule(() -> {
+        if (call.future.completeExceptionally(new TimeoutException(
+              String.format("No response from %s in %d ms", address, timeout)))) {
+          timeouts.incrementAndGet();
+          Runnable onTimeout = call.onTimeout;
+          if (onTimeout != null) {
+            onTimeout.run();
+          }
+        }
+      }, timeout, TimeUnit.MILLISECONDS);
+      return call;
+    }
+
+    <T> void complete(Call<T> call, T response) {
+      call.timer.cancel(false);
+      if (call.future.complete(response)) {
+        latency.record(System.nanoTime() - call.started);
+      }
+    }
+
+    void fail(Call<?> call, Throwable e) {
+      if (e instanceof CompletionException && e.getCause() != null) {
+        e = e.getCause();
+      }
+      call.timer.cancel(false);
+      if (call.future.completeExceptionally(e)) {
+        failures.incrementAndGet();
+      }
+    }
+
+    public String toString() {
+      return String.format("%s %s:%d connections=%d %s timeouts=%d failures=%d",
+        protocol, address.getHostString(), address.getPort(), opened.get(), latency, timeouts.get(), failures.get());
+    }
+  }
+
+  /**
+   * A kept connection, with a thread reading its responses.
+   */
+  private abstract class Connection extends Thread {
+    final Pool pool;
+    final Socket socket = new Socket();
+    final DataInputStream in;
+    final DataOutputStream out;
+    volatile boolean closed;
+
+    Connection(Pool pool) throws IOException {
+      super("service-client-" + pool.protocol + "-" + pool.address.getPort());
+      this.pool = pool;
+      try {
+        socket.connect(pool.address, (int)timeout);
+        socket.setTcpNoDelay(true); // Requests are written whole
+      } catch (IOException e) {
+        socket.close();
+        throw e;
+      }
+      in  = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER));
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER));
+      setDaemon(true);
+    }
+
+    public void run() {
+      try {
+        while (!closed) {
+          receive();
+        }
+      } catch (IOException e) {
+        close(e);
+      } catch (Throwable e) { // e.g. a bad length, or no memory for the response
+        close(new IOException(e.toString(), e));
+      }
+    }
+
+    abstract void receive() throws IOException;
+
+    abstract void failAll(IOException e);
+
+    void close(IOException e) {
+      closed = true;
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+      }
+      failAll(e);
+    }
+  }
+
+  private final class FrameConnection extends Connection {
+    final Map<Integer, Call<byte[]>> pending = new ConcurrentHashMap<>();
+    final AtomicInteger ids = new AtomicInteger();
+
+    FrameConnection(Pool pool) throws IOException {
+      super(pool);
+    }
+
+    void send(byte[] request, Call<byte[]> call) {
+      int id = ids.incrementAndGet();
+      call.onTimeout = () -> pending.remove(id);
+      pending.put(id, call);
+      if (call.future.isDone()) { // Timed out while the connection was opened
+        pending.remove(id);
+        return;
+      }
+      try {
+        synchronized (out) {
+          out.writeInt(4 + request.length);
+          out.writeInt(id);
+          out.write(request);
+          out.flush();
+        }
+      } catch (IOException e) {
+        close(e);
+      }
+      if (closed) { // The reader may have failed the others before this one was added
+        failAll(new IOException("Connection closed"));
+      }
+    }
+
+    void receive() throws IOException {
+      int length = in.readInt();
+      if (length < 5 || length > MAX_RESPONSE) {
+        throw new IOException("Bad frame length: " + length);
+      }
+      int id          = in.readInt();
+      byte status     = in.readByte();
+      byte[] response = new byte[length - 5];
+      in.readFully(response);
+      Call<byte[]> call = pending.remove(id);
+      if (call == null) {
+        return; // It timed out
+      }
+      if (status == FrameServer.OK) {
+        pool.complete(call, response);
+      } else {
+        pool.fail(call, new ErrorResponse(new String(response, StandardCharsets.UTF_8)));
+      }
+    }
+
+    void failAll(IOException e) {
+      for (Integer id : pending.keySet()) {
+        Call<byte[]> call = pending.remove(id);
+        if (call != null) {
+          pool.fail(call, e);
+        }
+      }
+    }
+  }
+
+  private final class HttpConnection extends Connection {
+    final Queue<Call<HttpResponse>> pending = new ConcurrentLinkedQueue<>();
+
+    HttpConnection(Pool pool) throws IOException {
+      super(pool);
+    }
+
+    void send(byte[] request, Call<HttpResponse> call) {
+      try {
+        synchronized (out) { // Responses come back in the order of the requests
+          pending.add(call);
+          out.write(request);
+          out.flush();
+        }
+      } catch (IOException e) {
+        close(e);
+      }
+      if (closed) {
+        failAll(new IOException("Connection closed"));
+      }
+    }
+
+    void receive() throws IOException {
+      String status = readLine(in);
+      if (status == null) {
+        throw new EOFException("Connection closed by " + pool.address);
+      }
+      if (status.isEmpty()) {
+        return;
+      }
+      String[] parts = status.split(" ", 3);
+      if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+        throw new IOException("Bad status line: " + status);
+      }
+      Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      String header;
+      while ((header = readLine(in)) != null && !header.isEmpty()) {
+        int colon = header.indexOf(':');
+        if (colon > 0) {
+          headers.put(header.substring(0, colon).trim(), header.substring(colon + 1).trim());
+        }
+      }
+      int code = Integer.parseInt(parts[1]);
+      boolean keepAlive = parts[0].equals("HTTP/1.1") && !"close".equalsIgnoreCase(headers.get("Connection"));
+
+      // Left on 'pending' until its body is read, for failAll() to fail it
+      Call<HttpResponse> call = pending.peek();
+      byte[] body;
+      if ((call != null && call.method.equals("HEAD")) || code == 204 || code == 304 || code / 100 == 1) {
+        body = new byte[0];
+      } else if ("chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"))) {
+        body = readChunks(in);
+      } else if (headers.containsKey("Content-Length")) {
+        body = new byte[size(headers.get("Content-Length"), 10, 0)];
+        in.readFully(body);
+      } else {
+        body      = readAll(in);
+        keepAlive = false;
+      }
+      pending.poll();
+      if (call != null) {
+        pool.complete(call, new HttpResponse(code, headers, body));
+      }
+      if (!keepAlive) {
+        close(new EOFException("Connection closed by " + pool.address));
+      }
+    }
+
+    void failAll(IOException e) {
+      Call<HttpResponse> call;
+      while ((call = pending.poll()) != null) {
+        pool.fail(call, e);
+      }
+    }
+  }
+
+  /**
+   * @param connections  kept per host and protocol
+   * @param timeout      of a request, from when it is made, and of
+   *                     opening a connection, in milliseconds
+   */
+  public ServiceClient(int connections, long timeout) {
+    this.connections = connections;
+    this.timeout     = timeout;
+    ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, threads("service-client-timer"));
+    timer.setRemoveOnCancelPolicy(true); // Most requests are answered: drop their timeouts at once
+    this.timer       = timer;
+  }
+
+  private static ThreadFactory threads(String name) {
+    return new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private Pool pool(String protocol, String host, int port) {
+    return pools.computeIfAbsent(protocol + " " + host + ":" + port,
+      key -> new Pool(protocol, new InetSocketAddress(host, port)));
+  }
+
+  /**
+   * Sends the request line, and completes with all the text of the
+   * response, without the last line end.
+   */
+  public CompletableFuture<String> line(String host, int port, String request) {
+    Pool pool = pool("line", host, port);
+    Call<String> call = pool.call("LINE");
+    pool.lineCalls.add(call);
+    call.future.whenComplete((response, e) -> pool.lineCalls.remove(call));
+    try {
+      pool.lines().execute(() -> {
+        if (call.future.isDone()) { // Timed out waiting for a thread
+          return;
+        }
+        try (Socket socket = new Socket()) {
+          socket.connect(pool.address, (int)timeout);
+          pool.opened.incrementAndGet();
+          socket.setSoTimeout((int)timeout);
+          OutputStream out = socket.getOutputStream();
+          out.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+          out.flush();
+          socket.shutdownOutput();
+
+          pool.complete(call, text(readAll(socket.getInputStream())));
+        } catch (IOException e) {
+          pool.fail(call, e);
+        }
+      });
+    } catch (RuntimeException e) { // Rejected once closed
+      pool.fail(call, e);
+    }
+    return call.future;
+  }
+
+  /**
+   * Sends the payload as a frame, on one of the host's frame
+   * connections, and completes with the payload of the response.
+   */
+  public CompletableFuture<byte[]> frame(String host, int port, byte[] request) {
+    Pool pool = pool("frame", host, port);
+    Call<byte[]> call = pool.call("FRAME");
+    pool.get().whenComplete((connection, e) -> {
+      if (e != null) {
+        pool.fail(call, e);
+      } else {
+        ((FrameConnection)connection).send(request, call);
+      }
+    });
+    return call.future;
+  }
+
+  /**
+   * frame() for a text request, as it would be sent to line().
+   */
+  public CompletableFuture<String> frame(String host, int port, String request) {
+    return frame(host, port, request.getBytes(StandardCharsets.UTF_8))
+      .thenApply(ServiceClient::text);
+  }
+
+  /**
+   * Sends an HTTP/1.1 request, on one of the host's HTTP connections.
+   *
+   * @param body  null for none
+   */
+  public CompletableFuture<HttpResponse> http(String host, int port, String method, String path, byte[] body) {
+    Pool pool = pool("http", host, port);
+
+    StringBuilder head = new StringBuilder();
+    head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+    head.append("Host: ").append(host).append(':').append(port).append("\r\n");
+    if (body != null) {
+      head.append("Content-Length: ").append(body.length).append("\r\n");
+    }
+    head.append("\r\n");
+    byte[] request = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    if (body != null) {
+      byte[] whole = new byte[request.length + body.length];
+      System.arraycopy(request, 0, whole, 0, request.length);
+      System.arraycopy(body, 0, whole, request.length, body.length);
+      request = whole;
+    }
+
+    byte[] bytes = request;
+    Call<HttpResponse> call = pool.call(method);
+    pool.get().whenComplete((connection, e) -> {
+      if (e != null) {
+        pool.fail(call, e);
+      } else {
+        ((HttpConnection)connection).send(bytes, call);
+      }
+    });
+    return call.future;
+  }
+
+  public CompletableFuture<HttpResponse> get(String host, int port, String path) {
+    return http(host, port, "GET", path, null);
+  }
+
+  /**
+   * The connections and latencies of each host and protocol, one
+   * line each.
+   */
+  public String stats() {
+    StringBuilder stats = new StringBuilder();
+    for (Pool pool : new TreeMap<>(pools).values()) {
+      stats.append(pool).append('\n');
+    }
+    return stats.toString();
+  }
+
+  /**
+   * Closes the connections; the requests in flight or queued fail.
+   */
+  public void close() {
+    closed = true;
+    for (Pool pool : pools.values()) {
+      pool.close();
+    }
+    connector.shutdownNow();
+    timer.shutdownNow();
+  }
+
+  // Without the last line end
+  private static String text(byte[] response) {
+    String text = new String(response, StandardCharsets.UTF_8);
+    return text.endsWith("\n") ? text.substring(0, text.length() - 1) : text;
+  }
+
+  /**
+   * A Content-Length or chunk size, at most MAX_RESPONSE in all with
+   * the 'read' bytes before it.
+   */
+  private static int size(String value, int radix, int read) throws IOException {
+    long size;
+    try {
+      size = Long.parseLong(value, radix);
+    } catch (NumberFormatException e) {
+      throw new IOException("Bad response size: " + value);
+    }
+    if (size < 0 || read + size > MAX_RESPONSE) {
+      throw new IOException("Bad response size: " + value);
+    }
+    return (int)size;
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b < 0) {
+        return (line.length() == 0) ? null : line.toString();
+      }
+      if (line.length() == BUFFER) {
+        throw new IOException("Line too long in response");
+      }
+      line.append((char)b);
+    }
+    int end = line.length();
+    return (end > 0 && line.charAt(end - 1) == '\r') ? line.substring(0, end - 1) : line.toString();
+  }
+
+  private static byte[] readChunks(DataInputStream in) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    while (true) {
+      String size = readLine(in);
+      if (size == null) {
+        throw new EOFException("Connection closed in a chunked body");
+      }
+      int length = size(size.split(";")[0].trim(), 16, body.size());
+      if (length == 0) {
+        String trailer;
+        while ((trailer = readLine(in)) != null && !trailer.isEmpty()) { }
+        return body.toByteArray();
+      }
+      byte[] chunk = new byte[length];
+      in.readFully(chunk);
+      body.write(chunk);
+      readLine(in);
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream all = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int n;
+    while ((n = in.read(buf)) > 0) {
+      if (all.size() + n > MAX_RESPONSE) {
+        throw new IOException("Response larger than " + MAX_RESPONSE + " bytes");
+      }
+      all.write(buf, 0, n);
+    }
+    return all.toByteArray();
+  }
+}
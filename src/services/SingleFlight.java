@@ -0,0 +1,78 @@
+package services;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Merges concurrent identical requests into one in-flight computation.
+ *
+ * The first caller for a key runs the task on the executor; callers
+ * asking for the same key while it is running get the same future,
+ * and so the same result. Once done, the key is forgotten and the
+ * next caller starts a new computation; results are not cached.
+ */
+public class SingleFlight<K, V> {
+
+  private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private final Executor executor;
+
+  private final AtomicLong requests   = new AtomicLong();
+  private final AtomicLong executions = new AtomicLong();
+
+  public SingleFlight(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Returns the result of the in-flight computation for the key,
+   * starting one with the task if there is none. Completes
+   * exceptionally with a RejectedExecutionException if the
+   * executor is full.
+   */
+  public CompletableFuture<V> submit(K key, Callable<V> task) {
+    requests.incrementAndGet();
+
+    CompletableFuture<V> created  = new CompletableFuture<>();
+    CompletableFuture<V> existing = inFlight.putIfAbsent(key, created);
+    if (existing != null) {
+      return existing;
+    }
+
+    executions.incrementAndGet();
+    try {
+      executor.execute(() -> {
+        try {
+          V result = task.call();
+          inFlight.remove(key, created);
+          created.complete(result);
+        } catch (Throwable e) {
+          inFlight.remove(key, created);
+          created.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      inFlight.remove(key, created);
+      created.completeExceptionally(e);
+    }
+    return created;
+  }
+
+  public long requests()   { return requests.get(); }
+  public long executions() { return executions.get(); }
+  public int inFlight()    { return inFlight.size(); }
+
+  /**
+   * The fraction of requests that were served by another
+   * request's computation, between 0 and 1.
+   */
+  public double coalescingRatio() {
+    long total = requests.get();
+    return (total == 0) ? 0 : 1.0 - (double)executions.get() / total;
+  }
+}
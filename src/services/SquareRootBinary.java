@@ -0,0 +1,184 @@
+package services;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+
+
+/**
+ * The binary mode of SquareRootService: the roots of whole arrays of
+ * numbers, sent and returned as raw big-endian values, with no text
+ * to parse or format per value.
+ *
+ * A request frame is laid out as:
+ *
+ *    byte     type of the values, TYPE_INT or TYPE_DOUBLE
+ *    int      number of values
+ *    int      ... the values, 4 bytes each (TYPE_INT)
+ *    double   ... or 8 bytes each, IEEE 754 (TYPE_DOUBLE)
+ *
+ * and answered by a response frame:
+ *
+ *    int      number of roots, the same as the request's
+ *    double   ... the roots, in order, 8 bytes each, IEEE 754
+ *
+ * A frame is streamed through the connection's two buffers: values
+ * are read from the input buffer and their roots put in the output
+ * buffer, which is written whenever it is full, so frames of any
+ * size (up to MAX_COUNT values) take no memory beyond the buffers,
+ * and nothing is allocated per frame or per value.
+ *
+ * Frames can be pipelined: the responses are written once all the
+ * input read so far is answered, so the count and the roots of a
+ * small frame go out in one packet.
+ *
+ * The methods on arrays, in chunks of CHUNK values, are not used by
+ * the service: they are only for SquareRootClient and
+ * SquareRootBenchmark.
+ *
+ * A frame of an unknown type or a count out of range is answered
+ * with a count of -1, and ends the connection.
+ */
+public class SquareRootBinary {
+
+  public static final byte TYPE_INT    = 1;
+  public static final byte TYPE_DOUBLE = 2;
+  public static final int MAX_COUNT    = 1 << 28;
+  public static final int CHUNK        = 8192;
+
+  // The math
+
+  public static void roots(int[] values, double[] roots, int count) {
+    for (int i = 0; i < count; i++) {
+      roots[i] = Math.sqrt(values[i]);
+    }
+  }
+
+  public static void roots(double[] values, double[] roots, int count) {
+    for (int i = 0; i < count; i++) {
+      roots[i] = Math.sqrt(values[i]);
+    }
+  }
+
+  // The encoding, big-endian
+
+  public static void getInts(byte[] buf, int[] values, int count) {
+    for (int i = 0, at = 0; i < count; i++, at += 4) {
+      values[i] = (buf[at] << 24) | ((buf[at + 1] & 0xff) << 16) | ((buf[at + 2] & 0xff) << 8) | (buf[at + 3] & 0xff);
+    }
+  }
+
+  public static void getDoubles(byte[] buf, double[] values, int count) {
+    for (int i = 0, at = 0; i < count; i++, at += 8) {
+      values[i] = Double.longBitsToDouble(getLong(buf, at));
+    }
+  }
+
+  private static long getLong(byte[] buf, int at) {
+    long high = (buf[at] << 24) | ((buf[at + 1] & 0xff) << 16) | ((buf[at + 2] & 0xff) << 8) | (buf[at + 3] & 0xff);
+    long low  = (buf[at + 4] << 24) | ((buf[at + 5] & 0xff) << 16) | ((buf[at + 6] & 0xff) << 8) | (buf[at + 7] & 0xff);
+    return (high << 32) | (low & 0xffffffffL);
+  }
+
+  public static void putInts(int[] values, int count, byte[] buf) {
+    for (int i = 0, at = 0; i < count; i++, at += 4) {
+      putInt(buf, at, values[i]);
+    }
+  }
+
+  public static void putDoubles(double[] values, int count, byte[] buf) {
+    for (int i = 0, at = 0; i < count; i++, at += 8) {
+      long bits = Double.doubleToRawLongBits(values[i]);
+      putInt(buf, at, (int)(bits >>> 32));
+      putInt(buf, at + 4, (int)bits);
+    }
+  }
+
+  private static void putInt(byte[] buf, int at, int value) {
+    buf[at]     = (byte)(value >>> 24);
+    buf[at + 1] = (byte)(value >>> 16);
+    buf[at + 2] = (byte)(value >>> 8);
+    buf[at + 3] = (byte)value;
+  }
+
+  // The frames
+
+  /**
+   * Answers request frames read from the channel until the end of its
+   * input. 'in' holds what was already read, ready to get from, and
+   * 'out' is empty, ready to put into. Returns the number of values
+   * answered.
+   */
+  public static long answer(ByteChannel channel, ByteBuffer in, ByteBuffer out) throws IOException {
+    long answered = 0;
+    while (true) {
+      if (!fill(channel, in, 5)) {
+        flush(channel, out);
+        return answered;
+      }
+      byte type = in.get();
+      int count = in.getInt();
+      if ((type != TYPE_INT && type != TYPE_DOUBLE) || count < 0 || count > MAX_COUNT) {
+        if (out.remaining() < 4) {
+          flush(channel, out);
+        }
+        out.putInt(-1);
+        flush(channel, out);
+        throw new IOException("Bad frame: type " + type + ", count " + count);
+      }
+
+      if (out.remaining() < 4) {
+        flush(channel, out);
+      }
+      out.putInt(count);
+      int size = (type == TYPE_INT) ? 4 : 8;
+      for (int done = 0; done < count; ) {
+        if (!fill(channel, in, size)) {
+          throw new EOFException("Frame cut short: " + done + " of " + count + " values");
+        }
+        if (out.remaining() < 8) {
+          flush(channel, out);
+        }
+        int n = Math.min(count - done, Math.min(in.remaining() / size, out.remaining() / 8));
+        if (type == TYPE_INT) {
+          for (int i = 0; i < n; i++) {
+            out.putDouble(Math.sqrt(in.getInt()));
+          }
+        } else {
+          for (int i = 0; i < n; i++) {
+            out.putDouble(Math.sqrt(in.getDouble()));
+          }
+        }
+        done += n;
+      }
+      answered += count;
+
+      // Send the roots once all the frames read so far are answered
+      if (!in.hasRemaining()) {
+        flush(channel, out);
+      }
+    }
+  }
+
+  // Reads until 'in' has at least 'n' bytes; false at the end of the input
+  private static boolean fill(ByteChannel channel, ByteBuffer in, int n) throws IOException {
+    while (in.remaining() < n) {
+      in.compact();
+      int read = channel.read(in);
+      in.flip();
+      if (read < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void flush(ByteChannel channel, ByteBuffer out) throws IOException {
+    out.flip();
+    while (out.hasRemaining()) {
+      channel.write(out);
+    }
+    out.clear();
+  }
+}
@@ -1,10 +1,18 @@
 package services;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Scanner;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -67,50 +75,566 @@ import java.util.Scanner;
  *     Don't understand: ABCD
  *     Connection closed by foreign host.
  *
+ * A range of integers, 'first..last', is answered with the root of
+ * each, one per line. A range of more than SQRT_MAX_RANGE values
+ * (default 1000000) is answered with an error line instead.
+ *
+ * Session mode: to send many values over one connection, start with
+ * the line 'session'. Each following line is then answered in order,
+ * until the line 'end' or the end of the input. The client does not
+ * have to wait for the results before sending more values: requests
+ * are read, and results written, in batches of up to 64 KB, and the
+ * results are sent whenever the server has read all the input it was
+ * sent so far. The number of values and the throughput of the session
+ * are logged when it ends. See miscs.SquareRootClient.
+ *
+ *     $ telnet <host> <port>
+ *     > session
+ *     > 16
+ *     4.0
+ *     > 1..3
+ *     1.0
+ *     1.4142135623730951
+ *     1.7320508075688772
+ *     > end
+ *     Connection closed by foreign host.
+ *
+ * Binary mode: for bulk numeric work, start with the line 'binary'
+ * (ended by '\n'). The client then sends frames of raw int or double
+ * arrays, and gets back frames of their roots as doubles, with no
+ * text parsed or formatted per value. See SquareRootBinary for the
+ * frame layout, and 'miscs.SquareRootClient -binary'.
+ *
+ * UDP: with SQRT_UDP=true, the service also answers datagrams on the
+ * same port number (see DatagramEndpoint). A datagram holds one or
+ * more integers, one per line, and is answered with one datagram of
+ * their roots, one per line, in order. As the sender's address of a
+ * datagram is not checked, a small request must not get a large
+ * answer sent to someone else: ranges are not answered over UDP, and
+ * an answer is at most SQRT_UDP_AMPLIFICATION (default 10) times the
+ * size of its request, or 64 bytes; past that, the answer is 'Too
+ * many values for one datagram'. The datagram 'stats', sent from
+ * the same host, returns the endpoint's counters. See
+ * miscs.UDPClient.
+ *
+ *     $ printf '25\n-15\n1..2' | java miscs.UDPClient <host> <port>
+ *     5.0
+ *     NaN
+ *     Ranges are not answered over UDP: 1..2
+ *
+ * Connections are read and written through a SocketChannel, with two
+ * direct buffers of 64 KB leased from BufferPool.SHARED and returned
+ * when it closes: requests are parsed in place, and responses copied
+ * in, so a connection allocates no buffer of its own; binary mode
+ * runs on the same two buffers. A line longer than the buffer is
+ * answered with 'Line too long', and skipped. At most
+ * SQRT_MAX_CONNECTIONS connections (default 256) are served at once,
+ * which bounds the buffers leased; more are closed when accepted.
+ * The line 'stats' returns the pool's stats.
+ *
+ * Frames: with FRAMES=true, the service also takes binary frames on
+ * a port of its own (see FrameServer). The payload of each frame is
+ * answered like a datagram, ranges included, up to 64 KB; past that,
+ * the answer is 'Too many values for one frame'. The frame 'stats'
+ * returns the FrameServer's counters.
+ *
  */
 
 public class SquareRootService extends Thread {
   private static PrintStream log = System.out;
 
+  private static final int BATCH = 1 << 16;
+  private static final byte[] EOL = System.lineSeparator().getBytes();
+  private static final long MAX_RANGE = Config.getLong("SQRT_MAX_RANGE", 1000000);
+  private static final int AMPLIFICATION = Config.getInt("SQRT_UDP_AMPLIFICATION", 10);
+  private static final int MAX_CONNECTIONS = Config.getInt("SQRT_MAX_CONNECTIONS", 256);
+
+  private static final AtomicInteger connections = new AtomicInteger();
+
+  private static DatagramEndpoint udp;
+  private static FrameServer frames;
+
+  private SocketChannel channel;
   private Socket client;
-  private SquareRootService(Socket client) {
-    this.client = client;
+  private SquareRootService(SocketChannel channel) {
+    this.channel = channel;
+    this.client  = channel.socket();
+  }
+
+  // Requests are read into 'in', and responses collected in 'out' and
+  // written to the socket in batches. Both are leased from the shared
+  // BufferPool for the life of the connection.
+  private ByteBuffer in;
+  private ByteBuffer out;
+  private int start; // of the current line in 'in'
+  private int end;
+  private boolean skipLF;
+  private boolean cut; // The rest of the line is skipped
+  private boolean tooLong; // The current line is the start of one that was cut
+
+  // Same as matching "^[+-]?\\d+$", without a regular expression
+  public static boolean isInteger(byte[] buf, int from, int to) {
+    if (from < to && (buf[from] == '+' || buf[from] == '-')) {
+      from++;
+    }
+    if (from == to) {
+      return false;
+    }
+    for (int i = from; i < to; i++) {
+      if (buf[i] < '0' || buf[i] > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Same as Integer.parseInt() on a string that passed isInteger()
+  public static int parseInt(byte[] buf, int from, int to) {
+    boolean negative = (buf[from] == '-');
+    long limit       = negative ? -(long)Integer.MIN_VALUE : Integer.MAX_VALUE;
+    long value       = 0;
+
+    for (int i = (buf[from] == '+' || negative) ? from + 1 : from; i < to; i++) {
+      value = value * 10 + (buf[i] - '0');
+      if (value > limit) {
+        throw new NumberFormatException("For input string: \"" + new String(buf, from, to - from) + "\"");
+      }
+    }
+    return (int)(negative ? -value : value);
+  }
+
+  // The same two, on a buffer that may be direct, by absolute index
+  public static boolean isInteger(ByteBuffer buf, int from, int to) {
+    if (from < to && (buf.get(from) == '+' || buf.get(from) == '-')) {
+      from++;
+    }
+    if (from == to) {
+      return false;
+    }
+    for (int i = from; i < to; i++) {
+      if (buf.get(i) < '0' || buf.get(i) > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static int parseInt(ByteBuffer buf, int from, int to) {
+    boolean negative = (buf.get(from) == '-');
+    long limit       = negative ? -(long)Integer.MIN_VALUE : Integer.MAX_VALUE;
+    long value       = 0;
+
+    for (int i = (buf.get(from) == '+' || negative) ? from + 1 : from; i < to; i++) {
+      value = value * 10 + (buf.get(i) - '0');
+      if (value > limit) {
+        throw new NumberFormatException("For input string: \"" + text(buf, from, to) + "\"");
+      }
+    }
+    return (int)(negative ? -value : value);
+  }
+
+  private static String text(ByteBuffer buf, int from, int to) {
+    byte[] bytes = new byte[to - from];
+    for (int i = from; i < to; i++) {
+      bytes[i - from] = buf.get(i);
+    }
+    return new String(bytes);
+  }
+
+  private void write(String line) throws IOException {
+    if (out.remaining() < line.length() + EOL.length) {
+      flush();
+    }
+    for (int i = 0; i < line.length(); i++) {
+      out.put((byte)line.charAt(i)); // Results are ASCII
+    }
+    out.put(EOL);
+  }
+
+  private void write(byte[] line) throws IOException {
+    if (out.remaining() < line.length + EOL.length) {
+      flush();
+    }
+    for (int from = 0; from < line.length; ) { // Longer than the buffer: in pieces
+      int n = Math.min(out.remaining(), line.length - from);
+      out.put(line, from, n);
+      from += n;
+      if (!out.hasRemaining()) {
+        flush();
+      }
+    }
+    if (out.remaining() < EOL.length) {
+      flush();
+    }
+    out.put(EOL);
+  }
+
+  private void flush() throws IOException {
+    out.flip();
+    while (out.hasRemaining()) {
+      channel.write(out);
+    }
+    out.clear();
+  }
+
+  /**
+   * Moves to the next line already read, if any. Lines end at '\n',
+   * '\r' or "\r\n", as in LineReader.
+   */
+  private boolean nextBuffered() {
+    int i     = in.position();
+    int limit = in.limit();
+    if (skipLF && i < limit) {
+      skipLF = false;
+      if (in.get(i) == '\n') {
+        in.position(++i);
+      }
+    }
+    for (int from = i; i < limit; i++) {
+      byte b = in.get(i);
+      if (b == '\n' || b == '\r') {
+        skipLF = (b == '\r');
+        in.position(i + 1);
+        if (cut) {
+          cut = false;
+          return nextBuffered();
+        }
+        start = from;
+        end   = i;
+        return true;
+      }
+    }
+    if (cut) {
+      in.position(limit);
+    }
+    return false;
+  }
+
+  /**
+   * Reads the next line. Returns false at the end of the stream. A
+   * line longer than the buffer is cut: its start is the line, marked
+   * tooLong, and the rest is skipped.
+   */
+  private boolean next() throws IOException {
+    tooLong = false;
+    while (!nextBuffered()) {
+      in.compact();
+      if (!in.hasRemaining()) {
+        in.flip();
+        start = 0;
+        end   = in.limit();
+        in.position(end);
+        cut     = true;
+        tooLong = true;
+        return true;
+      }
+      int n = channel.read(in);
+      in.flip();
+      if (n < 0) {
+        if (!in.hasRemaining()) {
+          return false;
+        }
+        start = in.position(); // Last line without a terminator
+        end   = in.limit();
+        in.position(end);
+        return true;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if more input is already read, i.e. next() may
+   * return without blocking.
+   */
+  private boolean buffered() {
+    if (skipLF && in.remaining() == 1 && in.get(in.position()) == '\n') {
+      return false;
+    }
+    return in.hasRemaining();
+  }
+
+  private static int indexOfRange(byte[] buf, int from, int to) {
+    for (int i = from; i + 1 < to; i++) {
+      if (buf[i] == '.' && buf[i + 1] == '.') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOfRange(ByteBuffer buf, int from, int to) {
+    for (int i = from; i + 1 < to; i++) {
+      if (buf.get(i) == '.' && buf.get(i + 1) == '.') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Answers the current line, an integer or a range of integers.
+   * Returns the number of values answered.
+   */
+  private long answer() throws IOException {
+    if (tooLong) {
+      write("Line too long: more than " + BATCH + " bytes");
+      return 0;
+    }
+    int range = indexOfRange(in, start, end);
+
+    try {
+      if (range < 0 && isInteger(in, start, end)) {
+        write(Double.toString(Math.sqrt(parseInt(in, start, end))));
+        return 1;
+      }
+      if (range >= 0 && isInteger(in, start, range) && isInteger(in, range + 2, end)) {
+        long first = parseInt(in, start, range);
+        long last  = parseInt(in, range + 2, end);
+        if (last - first >= MAX_RANGE) {
+          write(tooLong());
+          return 0;
+        }
+        for (long value = first; value <= last; value++) {
+          write(Double.toString(Math.sqrt(value)));
+        }
+        return Math.max(last - first + 1, 0);
+      }
+    } catch (NumberFormatException e) {
+      // Out of range of an int
+    }
+    write(("Don't understand: " + text(in, start, end)).getBytes());
+    return 0;
+  }
+
+  private static String tooLong() {
+    return "Range too long: at most " + MAX_RANGE + " values";
+  }
+
+  private boolean is(String word) {
+    if (tooLong || end - start != word.length()) {
+      return false;
+    }
+    for (int i = 0; i < word.length(); i++) {
+      if (in.get(start + i) != word.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void session() throws IOException {
+    long started = System.nanoTime();
+    long values  = 0;
+
+    while (next() && !is("end")) {
+      values += answer();
+
+      // Send the results so far once all the input sent is answered
+      if (!buffered()) {
+        flush();
+      }
+    }
+    flush();
+    report("Session", values, started);
+  }
+
+  private void binary() throws IOException {
+    long started = System.nanoTime();
+    if (skipLF && in.hasRemaining() && in.get(in.position()) == '\n') {
+      in.get();
+    }
+    long values = SquareRootBinary.answer(channel, in, out);
+    report("Binary session", values, started);
+  }
+
+  private void report(String session, long values, long started) {
+    long elapsed = Math.max(System.nanoTime() - started, 1);
+    log.printf("%s with %s:%d: %d values in %d ms (%.0f values/sec)\n",
+      session, client.getInetAddress(), client.getPort(),
+      values, elapsed / 1000000, values * 1e9 / elapsed);
   }
 
   public void run() {
     log.printf("Connected to %s:%d\n", client.getInetAddress(), client.getPort());
+    in  = BufferPool.SHARED.acquire(BATCH);
+    out = BufferPool.SHARED.acquire(BATCH);
+    in.flip(); // Nothing read yet
 
-    try (
-      Socket client   = this.client; // Makes sure that client is closed at end of try-statement.
-      Scanner req     = new Scanner(client.getInputStream());
-      PrintStream res = new PrintStream(client.getOutputStream(), true);
-    ) {
-      String response;
-      String request = req.nextLine();
-
-      double root;
+    try {
+      if (!next()) {
+        throw new NoSuchElementException("No line found");
+      }
 
-      if (request.matches("^[+-]?\\d+$")) {
-        root     = Math.sqrt(Integer.parseInt(request));
-        response = "" + root;
+      if (is("session")) {
+        session();
+      } else if (is("binary")) {
+        binary();
+      } else if (is("stats")) {
+        write(BufferPool.SHARED.stats());
+        flush();
       } else {
-        response = "Don't understand: " + request;
+        answer();
+        flush();
       }
-      res.println(response);
     } catch (Exception e) {
       log.println(e);
     } finally {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.println(e);
+      }
+      connections.decrementAndGet();
+      BufferPool.SHARED.release(in);
+      BufferPool.SHARED.release(out);
       log.printf("Disconnected from %s:%d\n", client.getInetAddress(), client.getPort());
     }
   }
 
+  // UDP
+
+  private static boolean put(ByteBuffer response, String line) {
+    if (response.remaining() < line.length() + EOL.length) {
+      return false;
+    }
+    for (int i = 0; i < line.length(); i++) {
+      response.put((byte)line.charAt(i));
+    }
+    response.put(EOL);
+    return true;
+  }
+
+  private static boolean put(ByteBuffer response, byte[] buf, int from, int to) {
+    String line = "Don't understand: " + new String(buf, from, to - from);
+    byte[] bytes = line.getBytes();
+    if (response.remaining() < bytes.length + EOL.length) {
+      return false;
+    }
+    response.put(bytes).put(EOL);
+    return true;
+  }
+
+  /**
+   * Answers one line of a datagram. Returns false if the answer
+   * does not fit in the response.
+   */
+  private static boolean answer(byte[] buf, int from, int to, ByteBuffer response, boolean ranges) {
+    int range = indexOfRange(buf, from, to);
+    try {
+      if (range < 0 && isInteger(buf, from, to)) {
+        return put(response, Double.toString(Math.sqrt(parseInt(buf, from, to))));
+      }
+      if (range >= 0 && !ranges) {
+        return put(response, "Ranges are not answered over UDP: " + new String(buf, from, to - from));
+      }
+      if (range >= 0 && isInteger(buf, from, range) && isInteger(buf, range + 2, to)) {
+        long first = parseInt(buf, from, range);
+        long last  = parseInt(buf, range + 2, to);
+        if (last - first >= MAX_RANGE) {
+          return put(response, tooLong());
+        }
+        for (long value = first; value <= last; value++) {
+          if (!put(response, Double.toString(Math.sqrt(value)))) {
+            return false;
+          }
+        }
+        return true;
+      }
+    } catch (NumberFormatException e) {
+      // Out of range of an int
+    }
+    return put(response, buf, from, to);
+  }
+
+  /**
+   * Answers a datagram, with an answer at most AMPLIFICATION times
+   * its size. 'stats' is only answered on loopback, as its answer
+   * is larger than that.
+   */
+  private static void datagram(ByteBuffer request, ByteBuffer response, SocketAddress sender) {
+    if (isStats(request) && sender instanceof InetSocketAddress
+        && ((InetSocketAddress)sender).getAddress().isLoopbackAddress()) {
+      put(response, udp.stats());
+      return;
+    }
+    int size = Math.max(request.remaining() * AMPLIFICATION, 64);
+    response.limit(Math.min(response.position() + size, response.capacity()));
+    answer(request, response, false, "Too many values for one datagram");
+  }
+
+  private static boolean isStats(ByteBuffer request) {
+    int from = request.arrayOffset() + request.position();
+    return request.remaining() == 5 && new String(request.array(), from, 5).equals("stats");
+  }
+
+  /**
+   * Answers lines, each an integer or, if 'ranges', a range. If the
+   * answer does not fit in the response, it is 'tooMany' instead.
+   */
+  private static void answer(ByteBuffer request, ByteBuffer response, boolean ranges, String tooMany) {
+    byte[] buf = request.array();
+    int from   = request.arrayOffset() + request.position();
+    int end    = request.arrayOffset() + request.limit();
+
+    while (from < end) {
+      int to = from;
+      while (to < end && buf[to] != '\n' && buf[to] != '\r') {
+        to++;
+      }
+      if (to > from && !answer(buf, from, to, response, ranges)) {
+        response.position(0);
+        put(response, tooMany);
+        return;
+      }
+      from = to + 1;
+    }
+  }
+
+  private static final ThreadLocal<ByteBuffer> responses =
+    ThreadLocal.withInitial(() -> ByteBuffer.allocate(DatagramEndpoint.MAX_SIZE));
+
+  /**
+   * Answers the payload of a frame (see FrameServer), the same as
+   * a datagram.
+   */
+  private static byte[] respond(byte[] request) {
+    ByteBuffer response = responses.get();
+    response.clear();
+    if (isStats(ByteBuffer.wrap(request))) {
+      put(response, frames.stats());
+    } else {
+      answer(ByteBuffer.wrap(request), response, true, "Too many values for one frame");
+    }
+    return Arrays.copyOf(response.array(), response.position());
+  }
+
   public static void main(String[] args) throws Exception {
     int port = 0;
     InetAddress host = InetAddress.getLocalHost(); // .getLoopbackAddress();
-    try (ServerSocket server = new ServerSocket(port, 0, host)) {
-      log.printf("Server listening on %s:%d\n", server.getInetAddress(), server.getLocalPort());
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress(host, port));
+      log.printf("Server listening on %s:%d\n", host, server.socket().getLocalPort());
+      if (Config.get("SQRT_UDP", "false").equals("true")) {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(host, server.socket().getLocalPort()));
+        udp = new DatagramEndpoint(channel, SquareRootService::datagram);
+        udp.start();
+        log.printf("UDP listening on %s\n", channel.getLocalAddress());
+      }
+      frames = FrameServer.fromConfig(host, SquareRootService::respond);
+      if (frames != null) {
+        frames.start();
+        log.printf("Frames listening on %s\n", frames.getLocalAddress());
+      }
       while (true) {
-        Socket client = server.accept();
+        SocketChannel client = server.accept();
+        if (connections.incrementAndGet() > MAX_CONNECTIONS) {
+          connections.decrementAndGet();
+          log.printf("Refused %s: %d connections already\n", client.getRemoteAddress(), MAX_CONNECTIONS);
+          client.close();
+          continue;
+        }
 
         (new SquareRootService(client)).start();
       }
@@ -0,0 +1,147 @@
+package services;
+
+import java.io.BufferedOutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.Connection;
+import java.sql.PreparedStatement; // import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * A microservice for retrieving student records from the Roumani.Sis
+ * table of the Derby database. Returns the students in the given major
+ * that have a GPA greater than or equal to the given number, the same
+ * as DerbyJDBCExample, but over the network.
+ *
+ * Results are streamed: the rows are fetched from Derby a block at
+ * a time (SIS_FETCH rows, default 100) with a forward-only, read-only
+ * cursor, and each block is written to the socket as it arrives. A
+ * large major is never held in memory as a whole. The connection is
+ * closed after the last row. If the client goes away, the query is
+ * stopped at the next block instead of being read to the end.
+ *
+ * Connections to the Derby network server (SIS_URL, default
+ * jdbc:derby://localhost:64413/EECS) are kept in a pool of SIS_POOL
+ * connections (default 8), so requests do not pay for a new one. A
+ * request waits at most SIS_POOL_TIMEOUT milliseconds (default 5000)
+ * for a connection, and is then answered with an SQL Error.
+ *
+ * Usage from telnet, send:
+ *
+ *  - gpa_ge <gpa> <major>
+ *
+ * Example:
+ *
+ *    $ telnet 130.63.96.85 44761
+ *      > gpa_ge 7 Computer Science
+ *      Student: 200715420 | Andrews, Kelly | 7.800000 | 2007
+ *      Student: 200768902 | Bartlett, Jasmine | 7.100000 | 2007
+ *      Student: 200420801 | Golden, Dante | 8.100000 | 2004
+ *      Student: 200746650 | Higgins, Alejandra | 7.100000 | 2007
+ *      Student: 200929837 | Jones, Evan | 8.600000 | 2009
+ *      Student: 200721627 | Shelton, Diana | 9.000000 | 2007
+ *
+ */
+public class StudentService extends Thread {
+  private static PrintStream log = System.out;
+
+  private static final Pattern isRequest = Pattern.compile("^gpa_ge\\s+([0-9]+(?:\\.[0-9]+)?)\\s+(.+)$");
+
+  private static final int FetchSize = Config.getInt("SIS_FETCH", 100);
+  private static final ConnectionPool pool = new ConnectionPool(
+    Config.get("SIS_URL", "jdbc:derby://localhost:64413/EECS"),
+    Config.getInt("SIS_POOL", 8),
+    Config.getLong("SIS_POOL_TIMEOUT", 5000));
+
+  private Socket client;
+  private StudentService(Socket client) {
+    this.client = client;
+  }
+
+  private void doRequest(String major, double gpa, PrintStream res) throws SQLException {
+    String query = "SELECT * FROM Roumani.Sis "
+                 + "WHERE major = ? "
+                 + "AND gpa >= ?";
+
+    try (
+      Connection connection       = pool.getConnection();
+      PreparedStatement statement = connection.prepareStatement(query,
+        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)
+    ) {
+      statement.setFetchSize(FetchSize);
+      statement.setString(1, major);
+      statement.setDouble(2, gpa);
+
+      try (ResultSet rs = statement.executeQuery()) {
+        int rows = 0;
+        while (rs.next()) {
+          res.printf("Student: %d | %s, %s | %f | %d\n",
+            rs.getInt("id"),
+            rs.getString("surname"),
+            rs.getString("givenname"),
+            rs.getDouble("gpa"),
+            rs.getInt("yearadmitted")
+          );
+
+          // Send each block of rows as soon as it has been fetched;
+          // checkError() flushes, and tells if the client is gone
+          if (++rows % FetchSize == 0 && res.checkError()) {
+            log.printf("Client gone after %d rows, query stopped\n", rows);
+            return;
+          }
+        }
+        log.printf("Sent %d rows\n", rows);
+      }
+    }
+  }
+
+  public void run() {
+    log.printf("Connected to %s:%d\n", client.getInetAddress(), client.getPort());
+
+    try (
+      Socket client   = this.client; // Makes sure that client is closed at end of try-statement.
+      PrintStream res = new PrintStream(new BufferedOutputStream(client.getOutputStream(), 1 << 16), false);
+    ) {
+      LineReader req = new LineReader(client.getInputStream());
+      req.nextLine();
+
+      String request  = req.toString().trim();
+      Matcher matcher = isRequest.matcher(request);
+
+      if (matcher.matches()) {
+        try {
+          doRequest(matcher.group(2), Double.parseDouble(matcher.group(1)), res);
+        } catch (SQLException e) {
+          log.println(e);
+          res.println("SQL Error: " + e.getMessage());
+        }
+      } else {
+        res.println("Don't understand: " + request);
+      }
+      res.flush();
+    } catch (Exception e) {
+      log.println(e);
+    } finally {
+      log.printf("Disconnected from %s:%d\n", client.getInetAddress(), client.getPort());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int port = 0;
+    InetAddress host = InetAddress.getLocalHost(); // .getLoopbackAddress();
+    try (ServerSocket server = new ServerSocket(port, 0, host)) {
+      log.printf("Server listening on %s:%d\n", server.getInetAddress(), server.getLocalPort());
+      while (true) {
+        Socket client = server.accept();
+
+        (new StudentService(client)).start();
+      }
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package services;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Opens connections to the SQLite database of Tax records,
+ * in one of three modes:
+ *
+ *  - disk       Every connection reads the database file (default).
+ *  - memory     At startup, the file is copied into an in-memory
+ *               database with SQLite's backup API ('restore from').
+ *               Connections share that copy, so queries never
+ *               touch the disk. The (pst, code) index is built
+ *               on the copy if the file does not have it.
+ *  - immutable  The file is opened with immutable=1, so SQLite
+ *               skips locking and change detection, with a large
+ *               mmap_size and page cache so reads are served from
+ *               mapped memory.
+ *
+ * The file is only read. If it does not have the (pst, code) index,
+ * PST_INDEX, which BulkLoader builds, disk and immutable mode log a
+ * warning, and memory mode builds it on its copy. Disk mode builds it
+ * in the file only when TAXDB_CREATE_INDEX=true.
+ *
+ * The mode is read from TAXDB_MODE and the file from TAXDB_PATH
+ * (default ~/4413/pkg/sqlite/Models_R_US.db). When TAXDB_RELOAD is
+ * set to a number of seconds, the file is checked that often and,
+ * in memory mode, copied again when it has changed; connections
+ * already open keep reading the previous copy until they close. The
+ * previous copy is dropped GRACE seconds after the switch, so that a
+ * connection being opened to it as it is replaced still finds it.
+ * In immutable mode the file should be replaced atomically (written
+ * elsewhere, then renamed), since open connections assume it does
+ * not change; new connections see the new file.
+ */
+public class TaxDatabase {
+  private static PrintStream log = System.out;
+
+  public static final String DISK      = "disk";
+  public static final String MEMORY    = "memory";
+  public static final String IMMUTABLE = "immutable";
+
+  private static final long MMAP_SIZE  = 256L * 1024 * 1024;
+  private static final int  CACHE_SIZE = -64 * 1024; // in KiB when negative, i.e. 64 MiB
+  private static final long GRACE      = 10;
+
+  /**
+   * The index that paged 'pst_gt' and 'top_pst' queries are served from.
+   */
+  public static final String PST_INDEX = "CREATE INDEX IF NOT EXISTS Tax_pst ON Tax (pst, code)";
+
+  private final String path;
+  private final String mode;
+
+  private volatile String url;
+  private Connection anchor; // keeps the current in-memory copy alive
+  private int generation;
+  private long lastModified;
+
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "tax-db-reload");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public TaxDatabase(String path, String mode) throws SQLException {
+    this(path, mode, false);
+  }
+
+  /**
+   * @param createIndex  in disk mode, build PST_INDEX in the file
+   *                     if it does not have it
+   */
+  public TaxDatabase(String path, String mode, boolean createIndex) throws SQLException {
+    this.path = path;
+    this.mode = mode;
+
+    if (mode.equals(DISK)) {
+      url = "jdbc:sqlite:" + path;
+      if (createIndex) {
+        try (Connection connection = getConnection(); Statement statement = connection.createStatement()) {
+          statement.executeUpdate(PST_INDEX);
+        }
+      } else {
+        checkIndex();
+      }
+    } else if (mode.equals(IMMUTABLE)) {
+      url = "jdbc:sqlite:file:" + path + "?immutable=1";
+      checkIndex();
+    } else if (mode.equals(MEMORY)) {
+      reload();
+    } else {
+      throw new IllegalArgumentException("Unrecognized database mode: " + mode);
+    }
+    lastModified = (new File(path)).lastModified();
+  }
+
+  private void checkIndex() throws SQLException {
+    try (Connection connection = getConnection(); Statement statement = connection.createStatement();
+         ResultSet rs = statement.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'index' AND name = 'Tax_pst'")) {
+      if (!rs.next()) {
+        log.printf("Warning: %s has no (pst, code) index; paged pst_gt and top_pst will scan the table\n", path);
+      }
+    }
+  }
+
+  /**
+   * Creates the database from the TAXDB_* environment variables.
+   */
+  public static TaxDatabase fromConfig() throws SQLException {
+    String home = System.getProperty("user.home");
+    String path = Config.get("TAXDB_PATH", home + "/4413/pkg/sqlite/Models_R_US.db");
+    String mode = Config.get("TAXDB_MODE", DISK);
+
+    TaxDatabase database = new TaxDatabase(path, mode, Config.get("TAXDB_CREATE_INDEX", "false").equals("true"));
+    database.watch(Config.getLong("TAXDB_RELOAD", 0));
+    log.printf("Database %s opened in %s mode\n", path, mode);
+    return database;
+  }
+
+  public String getMode() {
+    return mode;
+  }
+
+  public Connection getConnection() throws SQLException {
+    Connection connection = DriverManager.getConnection(url);
+    if (mode.equals(IMMUTABLE)) {
+      try (Statement statement = connection.createStatement()) {
+        statement.execute("PRAGMA mmap_size = " + MMAP_SIZE);
+        statement.execute("PRAGMA cache_size = " + CACHE_SIZE);
+      }
+    }
+    return connection;
+  }
+
+  /**
+   * Copies the database file into a new in-memory database and
+   * switches new connections over to it. Does nothing unless in
+   * memory mode.
+   */
+  public synchronized void reload() throws SQLException {
+    if (!mode.equals(MEMORY)) {
+      return;
+    }
+    String next = "jdbc:sqlite:file:taxdb" + (++generation) + "?mode=memory&cache=shared";
+    Connection copy = DriverManager.getConnection(next);
+    try (Statement statement = copy.createStatement()) {
+      statement.executeUpdate("restore from \"" + path + "\"");
+      statement.executeUpdate(PST_INDEX);
+    } catch (SQLException e) {
+      copy.close();
+      throw e;
+    }
+
+    Connection previous = anchor;
+    anchor = copy;
+    url    = next;
+    if (previous != null) {
+      // A thread may have read the previous url and not connected yet
+      timer.schedule(() -> {
+        try {
+          previous.close();
+        } catch (SQLException e) {
+          log.println(e);
+        }
+      }, GRACE, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Checks the database file for changes every given number of
+   * seconds, and reloads it when it has changed. Does nothing if
+   * the interval is not positive.
+   */
+  public void watch(long seconds) {
+    if (seconds <= 0) {
+      return;
+    }
+    timer.scheduleWithFixedDelay(() -> {
+      long modified = (new File(path)).lastModified();
+      if (modified != lastModified) {
+        try {
+          reload();
+          lastModified = modified;
+          log.printf("Database %s reloaded\n", path);
+        } catch (SQLException e) {
+          log.println(e);
+        }
+      }
+    }, seconds, seconds, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,366 @@
+package services;
+
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * A parsed TaxService request:
+ *
+ *    <command> <argument> <format>
+ *
+ * or the bare 'stats' command, which takes neither. 'pst_gt' may be
+ * followed by the paging options 'limit=<n>' and 'after=<token>',
+ * in any order.
+ *
+ * Tokenizes the request bytes in place, without regular expressions
+ * or intermediate strings. The command and format are matched to
+ * constants and the argument is kept as offsets into the buffer.
+ *
+ * Without options, parse() accepts exactly what the pattern
+ *
+ *    ^(code_eq|code_in|pst_gt|top_pst)\s+(\S+)\s+(json|xml|bin)$
+ *
+ * accepts on the trimmed request, and validate() applies the same
+ * checks to the argument as the original per-command patterns.
+ */
+public class TaxRequest {
+
+  public static final int CODE_EQ = 0;
+  public static final int CODE_IN = 1;
+  public static final int PST_GT  = 2;
+  public static final int STATS   = 3;
+  public static final int TOP_PST = 4;
+
+  public static final int XML  = 0;
+  public static final int JSON = 1;
+  public static final int BIN  = 2;
+
+  private static final byte[][] COMMANDS = ascii("code_eq", "code_in", "pst_gt", "stats", "top_pst");
+  private static final byte[][] FORMATS  = ascii("xml", "json", "bin");
+  private static final byte[] LIMIT      = ascii("limit=")[0];
+  private static final byte[] AFTER      = ascii("after=")[0];
+
+  // A continuation token is the 16 hex digits of the PST's bits, then the code
+  private static final int TOKEN_LENGTH = 18;
+
+  private byte[] buf;
+  private int start;
+  private int end;
+  private int command;
+  private int format;
+  private int argStart;
+  private int argEnd;
+  private int limitStart;
+  private int limitEnd;
+  private int afterStart;
+  private int afterEnd;
+
+  /**
+   * Parses the request in buf[from, to).
+   * Returns false if the request is not understood.
+   */
+  public boolean parse(byte[] buf, int from, int to) {
+    this.buf = buf;
+
+    // Same as String.trim()
+    while (from < to && (buf[from] & 0xFF) <= ' ') from++;
+    while (to > from && (buf[to - 1] & 0xFF) <= ' ') to--;
+    start = from;
+    end   = to;
+
+    int i = token(from, to);
+    command = match(COMMANDS, from, i);
+    if (command == STATS) {
+      argStart = argEnd = i;
+      return i == to;
+    }
+    if (command < 0 || i == to) {
+      return false;
+    }
+
+    argStart = skipSpaces(i, to);
+    argEnd   = token(argStart, to);
+    if (argEnd == argStart || argEnd == to) {
+      return false;
+    }
+
+    limitStart = limitEnd = afterStart = afterEnd = -1;
+
+    int f = skipSpaces(argEnd, to);
+    i     = token(f, to);
+    format = match(FORMATS, f, i);
+    if (format < 0) {
+      return false;
+    }
+
+    // Paging options
+    while (i < to) {
+      if (command != PST_GT) {
+        return false;
+      }
+      int o = skipSpaces(i, to);
+      i     = token(o, to);
+      if (limitStart < 0 && startsWith(LIMIT, o, i)) {
+        limitStart = o + LIMIT.length;
+        limitEnd   = i;
+      } else if (afterStart < 0 && startsWith(AFTER, o, i)) {
+        afterStart = o + AFTER.length;
+        afterEnd   = i;
+      } else {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks the argument for the command.
+   * Returns the error message, or null if it is valid.
+   */
+  public String validate() {
+    int length = argEnd - argStart;
+
+    if (command == CODE_EQ) {
+      if (length != 2 || !isUpper(argStart) || !isUpper(argStart + 1)) {
+        return "Invalid search value. Expected two letter province code, got: " + argument();
+      }
+    } else if (command == CODE_IN) {
+      boolean valid = (length % 3 == 2);
+      for (int i = 0; valid && i < length; i++) {
+        valid = (i % 3 == 2) ? buf[argStart + i] == ',' : isUpper(argStart + i);
+      }
+      if (!valid) {
+        return "Invalid search value. Expected comma-separated province codes, got: " + argument();
+      }
+    } else if (command == PST_GT) {
+      int i = digits(argStart);
+      boolean valid = (i > argStart);
+      if (valid && i < argEnd) {
+        valid = (buf[i] == '.') && digits(i + 1) == argEnd && i + 1 < argEnd;
+      }
+      if (!valid) {
+        return "Invalid search value. Expected percent value, got: " + argument();
+      }
+      if (limitStart >= 0 && count(limitStart, limitEnd) <= 0) {
+        return "Invalid limit value. Expected positive number, got: "
+             + new String(buf, limitStart, limitEnd - limitStart);
+      }
+      if (afterStart >= 0 && !isToken(afterStart, afterEnd)) {
+        return "Invalid after value. Expected continuation token, got: "
+             + new String(buf, afterStart, afterEnd - afterStart);
+      }
+    } else if (command == TOP_PST) {
+      if (count(argStart, argEnd) <= 0) {
+        return "Invalid search value. Expected positive number, got: " + argument();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if the request asks for the 'bin' format, even if
+   * it is not understood, so that its errors can be sent in bin too.
+   */
+  public boolean wantsBin() {
+    if (format == BIN) {
+      return true;
+    }
+    for (int i = skipSpaces(start, end); i < end; i = skipSpaces(i, end)) {
+      int token = token(i, end);
+      if (match(FORMATS, i, token) == BIN) {
+        return true;
+      }
+      i = token;
+    }
+    return false;
+  }
+
+  public int command() { return command; }
+  public int format()  { return format; }
+
+  public String commandName() {
+    return new String(COMMANDS[command], StandardCharsets.US_ASCII);
+  }
+
+  public String formatName() {
+    return new String(FORMATS[format], StandardCharsets.US_ASCII);
+  }
+
+  public String argument() {
+    return new String(buf, argStart, argEnd - argStart);
+  }
+
+  /**
+   * The number of codes in a validated 'code_in' argument.
+   */
+  public int codeCount() {
+    return (argEnd - argStart + 1) / 3;
+  }
+
+  /**
+   * The i-th code of a validated 'code_eq' or 'code_in' argument.
+   */
+  public String code(int i) {
+    return new String(buf, argStart + i * 3, 2, StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * The value of a validated 'pst_gt' argument.
+   */
+  public double pst() {
+    return Double.parseDouble(new String(buf, argStart, argEnd - argStart, StandardCharsets.US_ASCII));
+  }
+
+  /**
+   * The number of records of a validated 'top_pst' argument.
+   */
+  public int count() {
+    return count(argStart, argEnd);
+  }
+
+  /**
+   * The validated 'limit' option, or 0 if not given.
+   */
+  public int limit() {
+    return (limitStart < 0) ? 0 : count(limitStart, limitEnd);
+  }
+
+  public boolean hasAfter() {
+    return afterStart >= 0;
+  }
+
+  /**
+   * The PST of the last record of the previous page,
+   * from a validated 'after' option.
+   */
+  public double afterPst() {
+    long bits = 0;
+    for (int i = afterStart; i < afterStart + 16; i++) {
+      bits = (bits << 4) | Character.digit(buf[i], 16);
+    }
+    return Double.longBitsToDouble(bits);
+  }
+
+  /**
+   * The code of the last record of the previous page,
+   * from a validated 'after' option.
+   */
+  public String afterCode() {
+    return new String(buf, afterStart + 16, 2, StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * The continuation token for a page that ends with the given record.
+   */
+  public static String token(double pst, String code) {
+    String hex = Long.toHexString(Double.doubleToLongBits(pst));
+    return "0000000000000000".substring(hex.length()) + hex + code;
+  }
+
+  /**
+   * Identifies the request by its command, argument, format and
+   * options, regardless of the whitespace between them.
+   */
+  public String key() {
+    String key = commandName() + " " + argument() + " " + formatName();
+    if (limitStart >= 0) {
+      key += " limit=" + limit();
+    }
+    if (afterStart >= 0) {
+      key += " after=" + new String(buf, afterStart, afterEnd - afterStart);
+    }
+    return key;
+  }
+
+  /**
+   * The trimmed request, as received.
+   */
+  public String toString() {
+    return new String(buf, start, end - start);
+  }
+
+  // Same characters as \s in a regular expression
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+  }
+
+  private boolean isUpper(int i) {
+    return buf[i] >= 'A' && buf[i] <= 'Z';
+  }
+
+  private int digits(int i) {
+    while (i < argEnd && buf[i] >= '0' && buf[i] <= '9') i++;
+    return i;
+  }
+
+  // A positive count of up to 9 digits, or -1
+  private int count(int from, int to) {
+    if (from == to || to - from > 9) {
+      return -1;
+    }
+    int value = 0;
+    for (int i = from; i < to; i++) {
+      if (buf[i] < '0' || buf[i] > '9') {
+        return -1;
+      }
+      value = value * 10 + (buf[i] - '0');
+    }
+    return value;
+  }
+
+  private boolean isToken(int from, int to) {
+    if (to - from != TOKEN_LENGTH) {
+      return false;
+    }
+    for (int i = from; i < from + 16; i++) {
+      if (!((buf[i] >= '0' && buf[i] <= '9') || (buf[i] >= 'a' && buf[i] <= 'f'))) {
+        return false;
+      }
+    }
+    return isUpper(from + 16) && isUpper(from + 17);
+  }
+
+  private boolean startsWith(byte[] prefix, int from, int to) {
+    if (to - from < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (buf[from + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int token(int i, int to) {
+    while (i < to && !isSpace(buf[i])) i++;
+    return i;
+  }
+
+  private int skipSpaces(int i, int to) {
+    while (i < to && isSpace(buf[i])) i++;
+    return i;
+  }
+
+  private int match(byte[][] words, int from, int to) {
+    for (int w = 0; w < words.length; w++) {
+      byte[] word = words[w];
+      if (word.length != to - from) continue;
+
+      int i = 0;
+      while (i < word.length && buf[from + i] == word[i]) i++;
+      if (i == word.length) {
+        return w;
+      }
+    }
+    return -1;
+  }
+
+  private static byte[][] ascii(String... words) {
+    byte[][] bytes = new byte[words.length][];
+    for (int i = 0; i < words.length; i++) {
+      bytes[i] = words[i].getBytes(StandardCharsets.US_ASCII);
+    }
+    return bytes;
+  }
+}
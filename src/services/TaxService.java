@@ -1,26 +1,36 @@
 package services;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement; // import java.sql.Statement;
 import java.sql.SQLException;
 import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Scanner;
-
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Marshaller;
-
-import com.google.gson.Gson;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import model.TaxBean;
+import model.TaxBinaryEncoder;
 import model.TaxCollection;
+import model.TaxGson;
+import model.TaxSnapshot;
+import model.TaxXmlWriter;
 
 
 /**
@@ -28,19 +38,60 @@ import model.TaxCollection;
  * from the Tax table in the database based on the requested
  * information.
  *
- * This service takes 2 request types: 'code_eq' and 'pst_gt'.
- * When 'code_eq', the service takes a two letter province code and
- * returns a single Tax record. When 'pst_gt', it takes a double, and
- * returns a list of Tax records, all of which have PST greater than the
- * given number. A third parameter specifies the response format,
- * either 'xml' or 'json'.
+ * This service takes 4 request types: 'code_eq', 'code_in', 'pst_gt' and
+ * 'top_pst'. When 'code_eq', the service takes a two letter province code
+ * and returns a single Tax record. When 'code_in', it takes a comma-separated
+ * list of province codes and returns a list of Tax records, in the order
+ * requested, with a single query; codes without a record are listed as
+ * 'unknown'. When 'pst_gt', it takes a double, and returns a list of Tax
+ * records, all of which have PST greater than the given number. When
+ * 'top_pst', it takes a count k, and returns the k records with the
+ * highest PST.
+ * A third parameter specifies the response format, either 'xml', 'json'
+ * or 'bin'. The 'bin' format is the compact, length-prefixed binary encoding
+ * of TaxBinaryEncoder, meant for service-to-service calls; it can be read
+ * back with TaxBinaryDecoder. Errors are sent as a line of text, or to a
+ * 'bin' request, as a bin error message (KIND_ERROR), which the decoder
+ * throws as a TaxBinaryDecoder.ErrorResponse.
+ *
+ * The database is read from disk by default; see TaxDatabase for the
+ * in-memory and immutable modes (TAXDB_MODE) and reloading (TAXDB_RELOAD).
+ * When TAXDB_SNAPSHOT names a snapshot file written by TaxSnapshotExporter,
+ * the service does not open the database at all: the file is mapped
+ * into memory and requests are answered from it in place (TaxSnapshot),
+ * so a restarted service is at full speed right away.
+ *
+ * Queries run on a bounded pool of database threads (TAXDB_THREADS,
+ * default 4) with a bounded queue (TAXDB_QUEUE, default 64); when the
+ * queue is full, the client is told the server is busy. Identical
+ * requests that arrive while one is running share its query and its
+ * serialized response. The 'stats' request reports the pool's queue
+ * depth and how many requests were coalesced:
+ *
+ *    $ telnet 130.63.96.85 44760
+ *      > stats
+ *      queue=0/64 active=0/4 completed=120 requests=500 executions=120 in-flight=0 coalesced=76.0%
  *
  * Usage from telnet, send:
  *
  *  - code_eq <code> xml
  *  - code_eq <code> json
+ *  - code_eq <code> bin
+ *  - code_in <code>,<code>,... xml
+ *  - code_in <code>,<code>,... json
  *  - pst_gt <number> xml
  *  - pst_gt <number> json
+ *  - pst_gt <number> bin
+ *  - pst_gt <number> <format> limit=<n> after=<token>
+ *  - top_pst <k> <format>
+ *
+ * 'pst_gt' results can be paged: 'limit' sets the page size, and the
+ * records are then sorted by PST and code. A full page includes a 'next'
+ * continuation token, which is passed as 'after' to get the next page.
+ * Pages are served from the (pst, code) index, TaxDatabase.PST_INDEX,
+ * which BulkLoader builds after a load and memory mode on its copy.
+ * Disk mode only builds it in the file with TAXDB_CREATE_INDEX=true;
+ * without the index, pages scan the table and a warning is logged.
  *
  * Examples:
  *
@@ -60,6 +111,21 @@ import model.TaxCollection;
  *      {"name":"Ontario","code":"ON","type":"HST","pst":8.0,"gst":5.0}
  *
  *    $ telnet 130.63.96.85 44760
+ *      > code_in QC,ON,XX json
+ *      {"taxes":[{"name":"Québec","code":"QC","type":"QST+GST","pst":9.975000000000001,"gst":5.0},
+ *      {"name":"Ontario","code":"ON","type":"HST","pst":8.0,"gst":5.0}],"unknown":["XX"]}
+ *
+ *    $ telnet 130.63.96.85 44760
+ *      > pst_gt 9.0 json limit=2
+ *      {"taxes":[{"name":"Québec","code":"QC","type":"QST+GST","pst":9.975000000000001,"gst":5.0},
+ *      {"name":"New-Brunswick","code":"NB","type":"HST","pst":10.0,"gst":5.0}],"next":"4024000000000000NB"}
+ *
+ *    $ telnet 130.63.96.85 44760
+ *      > pst_gt 9.0 json limit=2 after=4024000000000000NB
+ *      {"taxes":[{"name":"Newfoundland and Labrador","code":"NL","type":"HST","pst":10.0,"gst":5.0},
+ *      {"name":"Nova Scotia","code":"NS","type":"HST","pst":10.0,"gst":5.0}],"next":"4024000000000000NS"}
+ *
+ *    $ telnet 130.63.96.85 44760
  *      > pst_gt 9.0 xml
  *      <?xml version="1.0" encoding="UTF-8" standalone="yes"?>
  *      <taxes>
@@ -108,124 +174,334 @@ import model.TaxCollection;
  *      {"name":"Prince Edward Island","code":"PE","type":"HST","pst":10.0,"gst":5.0},
  *      {"name":"Québec","code":"QC","type":"QST+GST","pst":9.975000000000001,"gst":5.0}]}
  *
+ * With FRAMES=true, requests are also taken as binary frames (see
+ * FrameServer), many at a time over one connection, each answered
+ * as soon as its query is done. The payload of a frame is a request
+ * line, answered with the same bytes as over telnet.
+ *
  */
 
 public class TaxService extends Thread {
   private static PrintStream log = System.out;
 
-  private final String Home = System.getProperty("user.home");
-  private final String URL  = "jdbc:sqlite:" + Home + "/4413/pkg/sqlite/Models_R_US.db";
+  private static TaxDatabase database;
+  private static TaxSnapshot snapshot;
+
+  // Database work runs on a bounded pool, off the socket threads
+  private static final int Threads = Config.getInt("TAXDB_THREADS", 4);
+  private static final int Queue   = Config.getInt("TAXDB_QUEUE", 64);
+
+  private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+    Threads, Threads, 0L, TimeUnit.MILLISECONDS,
+    new ArrayBlockingQueue<Runnable>(Queue),
+    new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r) {
+        return new Thread(r, "tax-db-" + count.incrementAndGet());
+      }
+    });
+
+  // Identical concurrent requests share one query and serialization
+  private static final SingleFlight<String, byte[]> flights = new SingleFlight<>(executor);
 
   private Socket client;
   private TaxService(Socket client) {
     this.client = client;
   }
 
-  private String doRequest(String request) {
-    String[] token = request.split("\\s+");
-    String where   = token[0];
-    String search  = token[1];
-    String format  = token[2];
+  private static TaxBean toBean(ResultSet rs) throws SQLException {
+    TaxBean bean = new TaxBean();
+    bean.setName(rs.getString("province"));
+    bean.setCode(rs.getString("code"));
+    bean.setType(rs.getString("type"));
+    bean.setGst(rs.getDouble("gst"));
+    bean.setPst(rs.getDouble("pst"));
+    return bean;
+  }
 
-    try (Connection connection = DriverManager.getConnection(URL)) {
+  private static byte[] line(String text) {
+    return (text + System.lineSeparator()).getBytes();
+  }
+
+  /**
+   * An error response: a line of text, or a bin error message when
+   * the client asked for 'bin', so it never reads text as a length.
+   */
+  private static byte[] error(TaxRequest request, String text) {
+    return request.wantsBin() ? TaxBinaryEncoder.encodeError(text) : line(text);
+  }
+
+  private static String stats() {
+    return String.format("queue=%d/%d active=%d/%d completed=%d "
+      + "requests=%d executions=%d in-flight=%d coalesced=%.1f%%",
+      executor.getQueue().size(), Queue,
+      executor.getActiveCount(), Threads,
+      executor.getCompletedTaskCount(),
+      flights.requests(), flights.executions(), flights.inFlight(),
+      flights.coalescingRatio() * 100);
+  }
+
+  private static byte[] format(TaxRequest request, Object responseObject) {
+    if (request.format() == TaxRequest.XML) {
+      try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+        if (responseObject instanceof TaxCollection) {
+          TaxXmlWriter.write((TaxCollection)responseObject, baos);
+        } else {
+          TaxXmlWriter.write((TaxBean)responseObject, baos);
+        }
+        return line(baos.toString());
+      } catch (Exception e) {
+        log.println(e);
+        return line("XML Error: " + e.getMessage());
+      }
+    } else if (request.format() == TaxRequest.JSON) {
+      return line(TaxGson.GSON.toJson(responseObject));
+    } else if (request.format() == TaxRequest.BIN) {
+      if (responseObject instanceof TaxCollection) {
+        return TaxBinaryEncoder.encode((TaxCollection)responseObject);
+      } else {
+        return TaxBinaryEncoder.encode((TaxBean)responseObject);
+      }
+    } else {
+      return line("Unrecognized format: " + request.formatName());
+    }
+  }
+
+  /**
+   * Answers the request from the snapshot file instead of the database.
+   */
+  private static byte[] doSnapshotRequest(TaxRequest request) {
+    Object responseObject = null;
+
+    if (request.command() == TaxRequest.CODE_EQ) {
+      int row = snapshot.find(request.code(0));
+      responseObject = (row < 0) ? new TaxBean() : snapshot.getBean(row);
+    } else if (request.command() == TaxRequest.CODE_IN) {
+      Set<String> codes = new LinkedHashSet<>();
+      for (int i = 0; i < request.codeCount(); i++) {
+        codes.add(request.code(i));
+      }
+
+      List<TaxBean> list       = new ArrayList<>();
+      List<String> unknown     = new ArrayList<>();
+      TaxCollection collection = new TaxCollection();
+
+      for (String code : codes) {
+        int row = snapshot.find(code);
+        if (row >= 0) {
+          list.add(snapshot.getBean(row));
+        } else {
+          unknown.add(code);
+        }
+      }
+      collection.setTaxes(list);
+      if (!unknown.isEmpty()) {
+        collection.setUnknown(unknown);
+      }
+      responseObject = collection;
+    } else if (request.command() == TaxRequest.PST_GT) {
+      int limit = request.limit();
+      TaxCollection collection = new TaxCollection();
+
+      if (limit > 0 || request.hasAfter()) {
+        List<TaxBean> list = snapshot.pstAbove(request.pst(),
+          request.hasAfter() ? request.afterPst() : 0,
+          request.hasAfter() ? request.afterCode() : null, limit);
+        collection.setTaxes(list);
+
+        if (limit > 0 && list.size() == limit) {
+          TaxBean last = list.get(list.size() - 1);
+          collection.setNext(TaxRequest.token(last.getPst(), last.getCode()));
+        }
+      } else {
+        collection.setTaxes(snapshot.pstAbove(request.pst()));
+      }
+      responseObject = collection;
+    } else if (request.command() == TaxRequest.TOP_PST) {
+      TaxCollection collection = new TaxCollection();
+      collection.setTaxes(snapshot.topPst(request.count()));
+      responseObject = collection;
+    } else {
+      return error(request, "Not implemented: " + request.commandName());
+    }
+    return format(request, responseObject);
+  }
+
+  private static byte[] doRequest(TaxRequest request) {
+    if (snapshot != null) {
+      return doSnapshotRequest(request);
+    }
+    try (Connection connection = database.getConnection()) {
       log.printf("Connected to database: %s\n", connection.getMetaData().getURL());
       Object responseObject = null;
 
-      if (where.equals("code_eq")) {
+      if (request.command() == TaxRequest.CODE_EQ) {
         String query = "SELECT * FROM Tax WHERE code = ?";
 
-        if (!search.matches("^[A-Z]{2}$")) {
-          return "Invalid search value. Expected two letter province code, got: " + search;
-        }
-
         try (PreparedStatement statement = connection.prepareStatement(query)) {
-          statement.setString(1, search);
+          statement.setString(1, request.code(0));
 
           try (ResultSet rs = statement.executeQuery()) {
             TaxBean bean = new TaxBean();
             while (rs.next()) {
-              bean.setName(rs.getString("province"));
-              bean.setCode(rs.getString("code"));
-              bean.setType(rs.getString("type"));
-              bean.setGst(rs.getDouble("gst"));
-              bean.setPst(rs.getDouble("pst"));
+              bean = toBean(rs);
             }
             responseObject = bean;
           }
         }
-      } else if (where.equals("pst_gt")) {
-        String query = "SELECT * FROM Tax WHERE pst > ?";
+      } else if (request.command() == TaxRequest.CODE_IN) {
+        // Duplicates are only looked up and returned once
+        Set<String> codes = new LinkedHashSet<>();
+        for (int i = 0; i < request.codeCount(); i++) {
+          codes.add(request.code(i));
+        }
+
+        String query = "SELECT * FROM Tax WHERE code IN ("
+                     + String.join(",", Collections.nCopies(codes.size(), "?"))
+                     + ")";
 
-        if (!search.matches("^[0-9]+(\\.[0-9]+)?$")) {
-          return "Invalid search value. Expected percent value, got: " + search;
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+          int i = 1;
+          for (String code : codes) {
+            statement.setString(i++, code);
+          }
+
+          try (ResultSet rs = statement.executeQuery()) {
+            Map<String, TaxBean> found = new HashMap<>();
+            while (rs.next()) {
+              TaxBean bean = toBean(rs);
+              found.put(bean.getCode(), bean);
+            }
+
+            // Re-order the results to match the request
+            List<TaxBean> list       = new ArrayList<>();
+            List<String> unknown     = new ArrayList<>();
+            TaxCollection collection = new TaxCollection();
+
+            for (String code : codes) {
+              TaxBean bean = found.get(code);
+              if (bean != null) {
+                list.add(bean);
+              } else {
+                unknown.add(code);
+              }
+            }
+            collection.setTaxes(list);
+            if (!unknown.isEmpty()) {
+              collection.setUnknown(unknown);
+            }
+            responseObject = collection;
+          }
+        }
+      } else if (request.command() == TaxRequest.PST_GT) {
+        int limit  = request.limit();
+        boolean paged = (limit > 0 || request.hasAfter());
+
+        // Pages are read in (pst, code) order, starting after the last
+        // record of the previous page, so only the page's rows are read
+        String query = "SELECT * FROM Tax WHERE pst > ?";
+        if (request.hasAfter()) {
+          query += " AND (pst > ? OR (pst = ? AND code > ?))";
+        }
+        if (paged) {
+          query += " ORDER BY pst, code LIMIT ?";
         }
 
         try (PreparedStatement statement = connection.prepareStatement(query)) {
-          statement.setDouble(1, Double.parseDouble(search));
+          int i = 1;
+          statement.setDouble(i++, request.pst());
+          if (request.hasAfter()) {
+            statement.setDouble(i++, request.afterPst());
+            statement.setDouble(i++, request.afterPst());
+            statement.setString(i++, request.afterCode());
+          }
+          if (paged) {
+            statement.setInt(i++, (limit > 0) ? limit : -1);
+          }
 
           try (ResultSet rs = statement.executeQuery()) {
             List<TaxBean> list       = new ArrayList<>();
             TaxCollection collection = new TaxCollection();
 
             while (rs.next()) {
-              TaxBean bean = new TaxBean();
-              bean.setName(rs.getString("province"));
-              bean.setCode(rs.getString("code"));
-              bean.setType(rs.getString("type"));
-              bean.setGst(rs.getDouble("gst"));
-              bean.setPst(rs.getDouble("pst"));
-              list.add(bean);
+              list.add(toBean(rs));
             }
             collection.setTaxes(list);
+
+            // A full page may be followed by another
+            if (limit > 0 && list.size() == limit) {
+              TaxBean last = list.get(list.size() - 1);
+              collection.setNext(TaxRequest.token(last.getPst(), last.getCode()));
+            }
             responseObject = collection;
           }
         }
-      } else {
-        return "Not implemented: " + where;
-      }
+      } else if (request.command() == TaxRequest.TOP_PST) {
+        String query = "SELECT * FROM Tax ORDER BY pst DESC, code LIMIT ?";
+
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+          statement.setInt(1, request.count());
 
-      if (format.equals("xml")) {
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-          JAXBContext context = JAXBContext.newInstance(responseObject.getClass());
-          Marshaller m = context.createMarshaller();
-
-          m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-          m.marshal(responseObject, baos);
-          return baos.toString();
-        } catch (Exception e) {
-          log.println(e);
-          return "XML Error: " + e.getMessage();
+          try (ResultSet rs = statement.executeQuery()) {
+            List<TaxBean> list       = new ArrayList<>();
+            TaxCollection collection = new TaxCollection();
+
+            while (rs.next()) {
+              list.add(toBean(rs));
+            }
+            collection.setTaxes(list);
+            responseObject = collection;
+          }
         }
-      } else if (format.equals("json")) {
-        return (new Gson()).toJson(responseObject);
       } else {
-        return "Unrecognized format: " + format;
+        return error(request, "Not implemented: " + request.commandName());
       }
+
+      return format(request, responseObject);
     } catch (SQLException e) {
       log.println(e);
-      return "SQL Error: " + e.getMessage();
+      return error(request, "SQL Error: " + e.getMessage());
     } finally {
       log.println("Disconnected from database.");
     }
   }
 
+  /**
+   * The response to the request line in buf[from..to).
+   */
+  private static byte[] respond(byte[] buf, int from, int to) throws Exception {
+    TaxRequest request = new TaxRequest();
+
+    if (!request.parse(buf, from, to)) {
+      return error(request, "Don't understand: " + request);
+    } else if (request.command() == TaxRequest.STATS) {
+      return line(stats());
+    } else if (request.validate() != null) {
+      return error(request, request.validate());
+    }
+    try {
+      return flights.submit(request.key(), () -> doRequest(request)).get();
+    } catch (ExecutionException e) {
+      if (!(e.getCause() instanceof RejectedExecutionException)) {
+        throw e;
+      }
+      return error(request, "Server busy, try again later");
+    }
+  }
+
   public void run() {
     log.printf("Connected to %s:%d\n", client.getInetAddress(), client.getPort());
 
     try (
       Socket client   = this.client; // Makes sure that client is closed at end of try-statement.
-      Scanner req     = new Scanner(client.getInputStream());
       PrintStream res = new PrintStream(client.getOutputStream(), true);
     ) {
-      String response;
-      String request = req.nextLine().trim();
+      LineReader req = new LineReader(client.getInputStream());
+      req.nextLine();
 
-      if (request.matches("^(code_eq|pst_gt)\\s+(\\S+)\\s+(json|xml)$")) {
-        response = doRequest(request);
-      } else {
-        response = "Don't understand: " + request;
-      }
-      res.println(response);
+      byte[] response = respond(req.buffer(), req.start(), req.end());
+      res.write(response);
+      res.flush();
     } catch (Exception e) {
       log.println(e);
     } finally {
@@ -236,8 +512,21 @@ public class TaxService extends Thread {
   public static void main(String[] args) throws Exception {
     int port = 0;
     InetAddress host = InetAddress.getLocalHost(); // .getLoopbackAddress();
+    String path = Config.get("TAXDB_SNAPSHOT", null);
+    if (path != null) {
+      snapshot = TaxSnapshot.open(new File(path));
+      log.printf("Snapshot %s opened, %d records\n", path, snapshot.size());
+    } else {
+      database = TaxDatabase.fromConfig();
+    }
+
     try (ServerSocket server = new ServerSocket(port, 0, host)) {
       log.printf("Server listening on %s:%d\n", server.getInetAddress(), server.getLocalPort());
+      FrameServer frames = FrameServer.fromConfig(host, request -> respond(request, 0, request.length));
+      if (frames != null) {
+        frames.start();
+        log.printf("Frames listening on %s\n", frames.getLocalAddress());
+      }
       while (true) {
         Socket client = server.accept();
 